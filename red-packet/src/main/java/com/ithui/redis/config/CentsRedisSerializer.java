@@ -0,0 +1,49 @@
+package com.ithui.redis.config;
+
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 红包金额的序列化方式：以分为单位的整数，存成十进制字符串
+ * 不带类型信息，redis会把这样的list元素和hash值按整数紧凑地存储，lua脚本中也可以直接tonumber
+ *
+ * @author jihui
+ */
+public class CentsRedisSerializer implements RedisSerializer<Long> {
+
+    public static final CentsRedisSerializer INSTANCE = new CentsRedisSerializer();
+
+    @Override
+    public byte[] serialize(Long cents) throws SerializationException {
+        if (cents == null) {
+            return null;
+        }
+        return toBytes(cents);
+    }
+
+    /**
+     * 直接序列化基本类型，批量写入时不用装箱
+     */
+    public static byte[] toBytes(long cents) {
+        return Long.toString(cents).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public Long deserialize(byte[] bytes) throws SerializationException {
+        if (bytes == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(new String(bytes, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            throw new SerializationException("Cannot deserialize cents", e);
+        }
+    }
+
+    @Override
+    public Class<?> getTargetType() {
+        return Long.class;
+    }
+}
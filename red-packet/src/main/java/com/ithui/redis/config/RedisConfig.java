@@ -3,8 +3,10 @@ package com.ithui.redis.config;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializationContext;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 
 /**
@@ -32,4 +34,39 @@ public class RedisConfig {
 
         return redisTemplate;
     }
+
+    /**
+     * 红包专用：key是字符串，值是以分为单位的金额，不再存json对象，红包id只保存在key中
+     */
+    @Bean
+    public RedisTemplate<String, Long> redPacketRedisTemplate(LettuceConnectionFactory lettuceConnectionFactory)
+    {
+        RedisTemplate<String,Long> redisTemplate = new RedisTemplate<>();
+
+        redisTemplate.setConnectionFactory(lettuceConnectionFactory);
+        redisTemplate.setKeySerializer(new StringRedisSerializer());
+        redisTemplate.setValueSerializer(CentsRedisSerializer.INSTANCE);
+
+        redisTemplate.setHashKeySerializer(new StringRedisSerializer());
+        redisTemplate.setHashValueSerializer(CentsRedisSerializer.INSTANCE);
+
+        redisTemplate.afterPropertiesSet();
+
+        return redisTemplate;
+    }
+
+    /**
+     * 红包专用的响应式模板，序列化方式和redPacketRedisTemplate相同，所有请求复用同一个lettuce连接
+     */
+    @Bean
+    public ReactiveRedisTemplate<String, Long> reactiveRedPacketRedisTemplate(LettuceConnectionFactory lettuceConnectionFactory)
+    {
+        RedisSerializationContext<String, Long> serializationContext = RedisSerializationContext
+                .<String, Long>newSerializationContext(new StringRedisSerializer())
+                .value(CentsRedisSerializer.INSTANCE)
+                .hashKey(new StringRedisSerializer())
+                .hashValue(CentsRedisSerializer.INSTANCE)
+                .build();
+        return new ReactiveRedisTemplate<>(lettuceConnectionFactory, serializationContext);
+    }
 }
@@ -0,0 +1,43 @@
+package com.ithui.redis.config;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 虚拟线程模式：抢红包的请求大部分时间在等redis响应，每个请求一个虚拟线程，并发不再受tomcat线程池大小限制
+ * 属性名和Spring Boot 3.2相同，升级后可以删除这个类
+ *
+ * @author jihui
+ */
+@Configuration
+@ConditionalOnProperty(name = "spring.threads.virtual.enabled", havingValue = "true")
+public class VirtualThreadConfig {
+
+    private final ExecutorService virtualThreadExecutor = newVirtualThreadPerTaskExecutor();
+
+    @Bean
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadProtocolHandlerCustomizer() {
+        return protocolHandler -> protocolHandler.setExecutor(virtualThreadExecutor);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        virtualThreadExecutor.shutdown();
+    }
+
+    //按Java 17编译，Java 21的方法只能反射调用
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("virtual threads require Java 21, current version is "
+                    + System.getProperty("java.version"), e);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.ithui.redis.controller;
+
+import com.alibaba.fastjson.JSON;
+import com.ithui.redis.script.RedPacketScripts;
+import com.ithui.redis.util.RedPacketKeys;
+import com.ithui.redis.util.RedPacketSplitter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 非阻塞的发红包和抢红包，逻辑和RedPacketController相同
+ * 返回Mono时Spring MVC按异步请求处理，等待redis期间不占用tomcat线程，redis的响应在lettuce的事件循环线程上处理
+ *
+ * @author jihui
+ */
+@RestController
+@RequestMapping("/reactive")
+public class ReactiveRedPacketController {
+
+    @Autowired
+    private ReactiveRedisTemplate<String, Long> reactiveRedPacketRedisTemplate;
+
+    //执行抢红包脚本，脚本的参数按字符串传入
+    @Autowired
+    private ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+
+    @GetMapping("/send")
+    public Mono<String> sendRedPacket(@RequestParam("money") double totalMoney, @RequestParam("num") Integer redPacketNum){
+        long totalCents = Math.round(totalMoney * 100);
+        if (redPacketNum <= 0 || totalCents < redPacketNum) {
+            return Mono.just("每个红包至少0.01元");
+        }
+        String redPacketId = UUID.randomUUID().toString();
+        String redPacketKey = RedPacketController.redPacketKey(redPacketId);
+
+        //通过二倍均值法确定每个红包的金额（分）
+        long[] shares = RedPacketSplitter.split(totalCents, redPacketNum);
+        Long[] values = new Long[shares.length];
+        List<BigDecimal> redPacketList = new ArrayList<>(shares.length);
+        for (int i = 0; i < shares.length; i++) {
+            values[i] = shares[i];
+            redPacketList.add(RedPacketController.centsToMoney(shares[i]));
+        }
+
+        //写入红包后再设置过期时间
+        return reactiveRedPacketRedisTemplate.opsForList().leftPushAll(redPacketKey, values)
+                .then(reactiveRedPacketRedisTemplate.expire(redPacketKey, Duration.ofSeconds(RedPacketController.RED_PACKET_EXPIRE_SECONDS)))
+                .thenReturn("红包id" + redPacketKey + "红包列表" + JSON.toJSONString(redPacketList));
+    }
+
+    @GetMapping("/receive")
+    public Mono<String> receiveRedPacket(@RequestParam("id") String redPacketId,
+                                         @RequestParam("userId" ) String userId
+    ) {
+        //和阻塞版本使用同一个脚本，脚本返回的列表作为一个元素发出
+        Flux<List<?>> result = reactiveStringRedisTemplate.execute(RedPacketScripts.GRAB_SCRIPT,
+                Arrays.asList(RedPacketController.redPacketConsumerKey(redPacketId),
+                        RedPacketController.redPacketKey(redPacketId), RedPacketKeys.grabStreamKey(redPacketId)),
+                Arrays.asList(userId, String.valueOf(RedPacketController.RED_PACKET_EXPIRE_SECONDS), redPacketId));
+        return result.next()
+                .map(grabbed -> RedPacketController.grabResult(grabbed, userId))
+                .defaultIfEmpty("红包已被抢完");
+    }
+}
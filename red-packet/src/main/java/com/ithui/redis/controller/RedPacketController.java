@@ -1,17 +1,31 @@
 package com.ithui.redis.controller;
 
 import com.alibaba.fastjson.JSON;
-import com.ithui.redis.entity.RedPacket;
+import com.ithui.redis.config.CentsRedisSerializer;
+import com.ithui.redis.entity.RedPacketBatchRequest;
+import com.ithui.redis.script.RedPacketScripts;
+import com.ithui.redis.util.RedPacketKeys;
+import com.ithui.redis.util.RedPacketSplitter;
 import lombok.extern.log4j.Log4j2;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 
 /**
  * @author jihui
@@ -23,84 +37,258 @@ public class RedPacketController {
 
     public static final String RED_PACKET_KEY = "redpacket:";//红包的key
     public static final String RED_PACKET_CONSUMER_KEY = "redpacket:consumer:";//用户领取红包记录
+    public static final String RED_PACKET_LAZY_KEY = "redpacket:lazy:";//懒拆分红包的剩余金额和个数
+    public static final String RED_PACKET_CLAIM_KEY = "redpacket:claim:";//懒拆分红包的领取记录，按用户分桶
+    public static final String RED_PACKET_BLOOM_KEY = "redpacket:bloom:";//懒拆分红包领取用户的布隆过滤器
+    public static final int CLAIM_BUCKET_SIZE = 100;//小于hash-max-listpack-entries的默认值128
+    private static final int CLAIM_BUCKETS_CACHE_SIZE = 10000;//本地缓存的懒拆分红包桶数的个数上限
+    public static final long RED_PACKET_EXPIRE_SECONDS = TimeUnit.DAYS.toSeconds(1);//红包和领取记录的过期时间
 
+    //红包金额以分为单位存储，不再存json对象
     @Autowired
-    private RedisTemplate redisTemplate;
-    //private StringRedisTemplate stringRedisTemplate;
+    private RedisTemplate<String, Long> redPacketRedisTemplate;
+    //执行抢红包脚本，脚本的参数按字符串传入
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    //懒拆分红包是否使用布隆过滤器：抢红包脚本先查位图，一定没抢过时跳过领取记录桶的查询
+    //位图和领取记录在同一次EVAL中访问，省的是redis中的查询，不减少网络往返
+    @Value("${redpacket.claim.bloom-enabled:false}")
+    private boolean claimBloomEnabled;
+
+    //懒拆分红包的领取记录桶数，发红包后不会再变，缓存在本地，抢红包时在客户端算出用户所在的桶
+    private final Map<String, Long> claimBuckets = new ConcurrentHashMap<>();
+
+    //一次批量发红包最多的红包数，拆分和pipeline的开销随红包数增长
+    @Value("${redpacket.batch.max-size:100}")
+    private int maxBatchSize;
 
     @GetMapping("/send")
     public String sendRedPacket(@RequestParam("money") double totalMoney, @RequestParam("num") Integer redPacketNum){
-        //通过二倍均值法确定每个红包的金额
+        long totalCents = Math.round(totalMoney * 100);
+        if (redPacketNum <= 0 || totalCents < redPacketNum) {
+            return "每个红包至少0.01元";
+        }
         String redPacketId = UUID.randomUUID().toString();
 
-        List<RedPacket> redPacketList = this.divideRedPacketMoney(totalMoney, redPacketNum, redPacketId);
+        //通过二倍均值法确定每个红包的金额（分）
+        long[] shares = RedPacketSplitter.split(totalCents, redPacketNum);
 
-        String redPacketKey = RED_PACKET_KEY + redPacketId;
+        String redPacketKey = redPacketKey(redPacketId);
 
-        redisTemplate.opsForList().leftPushAll(redPacketKey,redPacketList);
+        //每个红包只存金额（分），红包id已经在key中，不再重复存储
+        byte[][] values = new byte[shares.length][];
+        for (int i = 0; i < shares.length; i++) {
+            values[i] = CentsRedisSerializer.toBytes(shares[i]);
+        }
+        byte[] rawKey = StringRedisSerializer.UTF_8.serialize(redPacketKey);
+        redPacketRedisTemplate.execute((RedisCallback<Long>) connection -> connection.listCommands().lPush(rawKey, values));
         //stringRedisTemplate.opsForList().leftPushAll(redPacketKey, redPacketList);
 
         //设置红包的过期时间
-        redisTemplate.expire(redPacketKey,1, TimeUnit.DAYS);
+        redPacketRedisTemplate.expire(redPacketKey,RED_PACKET_EXPIRE_SECONDS, TimeUnit.SECONDS);
 
+        List<BigDecimal> redPacketList = new ArrayList<>(shares.length);
+        for (long cents : shares) {
+            redPacketList.add(centsToMoney(cents));
+        }
         return "红包id" + redPacketKey + "红包列表" + JSON.toJSONString(redPacketList);
 
     }
 
+    //批量发红包：并行拆分，所有红包的写入和过期时间在一次pipeline中发送
+    @PostMapping("/sendBatch")
+    public ResponseEntity<String> sendRedPacketBatch(@RequestBody RedPacketBatchRequest request){
+        List<RedPacketBatchRequest.Item> items = request.getPackets();
+        if (items == null || items.isEmpty()) {
+            return ResponseEntity.badRequest().body("红包列表不能为空");
+        }
+        if (items.size() > maxBatchSize) {
+            return ResponseEntity.badRequest().body("一次最多发" + maxBatchSize + "个红包");
+        }
+        long[] totalCents = new long[items.size()];
+        for (int i = 0; i < items.size(); i++) {
+            RedPacketBatchRequest.Item item = items.get(i);
+            if (item == null) {
+                return ResponseEntity.badRequest().body("第" + (i + 1) + "个红包不能为空");
+            }
+            totalCents[i] = Math.round(item.getMoney() * 100);
+            if (item.getNum() <= 0 || totalCents[i] < item.getNum()) {
+                return ResponseEntity.badRequest().body("第" + (i + 1) + "个红包每个至少0.01元");
+            }
+        }
+
+        //拆分是纯CPU计算，在ForkJoin公共池中并行完成
+        long[][] shares = IntStream.range(0, items.size()).parallel()
+                .mapToObj(i -> RedPacketSplitter.split(totalCents[i], items.get(i).getNum()))
+                .toArray(long[][]::new);
+
+        List<String> redPacketIds = new ArrayList<>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            redPacketIds.add(UUID.randomUUID().toString());
+        }
+        redPacketRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < shares.length; i++) {
+                byte[] rawKey = StringRedisSerializer.UTF_8.serialize(redPacketKey(redPacketIds.get(i)));
+                byte[][] values = new byte[shares[i].length][];
+                for (int j = 0; j < shares[i].length; j++) {
+                    values[j] = CentsRedisSerializer.toBytes(shares[i][j]);
+                }
+                connection.listCommands().lPush(rawKey, values);
+                connection.keyCommands().expire(rawKey, RED_PACKET_EXPIRE_SECONDS);
+            }
+            return null;
+        });
+
+        return ResponseEntity.ok("红包id列表" + JSON.toJSONString(redPacketIds));
+    }
+
     //抢红包
     @GetMapping("/receive")
     public String receiveRedPacket(@RequestParam("id") String redPacketId,
                                    @RequestParam("userId" ) String userId
     ) {
-        //判断请求的用户是否已经抢过红包
-        Boolean isHasKey = redisTemplate.opsForHash().hasKey(RED_PACKET_CONSUMER_KEY + redPacketId, userId);
-        if(!isHasKey){
-            //从redis中出列一个元素
-            RedPacket redPacket = (RedPacket) redisTemplate.opsForList().leftPop(RED_PACKET_KEY + redPacketId);
-            //判断红包是否已经抢完
-            if(redPacket != null){
-                //将红包信息存入到redis中的hash中，以便后续使用
-                redisTemplate.opsForHash().put(RED_PACKET_CONSUMER_KEY + redPacketId,userId,redPacket);
-
-                log.info("用户{}抢到红包金额为{}",userId,redPacket.getMoney());
-
-                return "抢到红包金额为" + redPacket.getMoney();
-            }else {
-                return "红包已被抢完";
+        //判断是否抢过、出列一个红包、记录领取在一个lua脚本中原子完成，只需要一次网络往返
+        List<?> result = stringRedisTemplate.execute(RedPacketScripts.GRAB_SCRIPT,
+                Arrays.asList(redPacketConsumerKey(redPacketId), redPacketKey(redPacketId), RedPacketKeys.grabStreamKey(redPacketId)),
+                userId, String.valueOf(RED_PACKET_EXPIRE_SECONDS), redPacketId);
+        return grabResult(result, userId);
+    }
+
+    //发红包（懒拆分）：只保存剩余金额和个数，不管有多少个红包，发送都是O(1)
+    @GetMapping("/sendLazy")
+    public String sendLazyRedPacket(@RequestParam("money") double totalMoney, @RequestParam("num") Integer redPacketNum){
+        long totalCents = Math.round(totalMoney * 100);
+        if (redPacketNum <= 0 || totalCents < redPacketNum) {
+            return "每个红包至少0.01元";
+        }
+        String redPacketId = UUID.randomUUID().toString();
+        String redPacketLazyKey = redPacketLazyKey(redPacketId);
+
+        Map<String, Long> redPacket = new HashMap<>();
+        redPacket.put("amount", totalCents);
+        redPacket.put("count", redPacketNum.longValue());
+        //领取记录分桶，每个桶最多约CLAIM_BUCKET_SIZE个用户，小hash用listpack紧凑存储
+        long buckets = (long) (redPacketNum + CLAIM_BUCKET_SIZE - 1) / CLAIM_BUCKET_SIZE;
+        redPacket.put("buckets", buckets);
+        if (claimBloomEnabled) {
+            //每个用户10位、7个哈希函数，误判率约1%
+            redPacket.put("bloomBits", Math.max(64L, redPacketNum * 10L));
+        }
+        redPacketRedisTemplate.opsForHash().putAll(redPacketLazyKey, redPacket);
+
+        //设置红包的过期时间
+        redPacketRedisTemplate.expire(redPacketLazyKey,RED_PACKET_EXPIRE_SECONDS, TimeUnit.SECONDS);
+        cacheClaimBuckets(redPacketId, buckets);
+
+        return "红包id" + redPacketId + "红包金额" + centsToMoney(totalCents) + "红包个数" + redPacketNum;
+    }
+
+    //抢红包（懒拆分）：抢的时候才在lua脚本中用二倍均值法算出金额
+    @GetMapping("/receiveLazy")
+    public String receiveLazyRedPacket(@RequestParam("id") String redPacketId,
+                                       @RequestParam("userId" ) String userId
+    ) {
+        //用户id的两个哈希值用于选择领取记录的桶和计算布隆过滤器的位
+        long userHash = mix(userId.hashCode());
+        List<?> result = grabLazy(redPacketId, userId, userHash);
+        if (grabStatus(result) == -2) {
+            //桶数不会变，只有本地缓存出错时才会走到这里，丢掉缓存重新读取桶数后再抢一次
+            claimBuckets.remove(redPacketId);
+            result = grabLazy(redPacketId, userId, userHash);
+            if (grabStatus(result) == -2) {
+                log.warn("懒拆分红包{}的领取记录桶数不一致", redPacketId);
+                claimBuckets.remove(redPacketId);
+                return "系统繁忙，请稍后再试";
+            }
+        }
+        return grabResult(result, userId);
+    }
+
+    private List<?> grabLazy(String redPacketId, String userId, long userHash) {
+        //redis 7之前脚本中的math.random每次调用种子都相同，随机数由客户端生成
+        long h1 = userHash & 0xFFFFFFFFL;
+        long bucket = h1 % claimBuckets(redPacketId);
+        return stringRedisTemplate.execute(RedPacketScripts.GRAB_LAZY_SCRIPT,
+                Arrays.asList(redPacketLazyKey(redPacketId), redPacketBloomKey(redPacketId), RedPacketKeys.grabStreamKey(redPacketId),
+                        redPacketClaimKey(redPacketId, bucket)),
+                userId, String.valueOf(RED_PACKET_EXPIRE_SECONDS), String.valueOf(ThreadLocalRandom.current().nextDouble()),
+                String.valueOf(bucket), String.valueOf(h1), String.valueOf((userHash >>> 32) | 1),
+                redPacketId);
+    }
+
+    //红包不存在时按1个桶处理，脚本会返回红包已被抢完，不缓存
+    private long claimBuckets(String redPacketId) {
+        Long buckets = claimBuckets.get(redPacketId);
+        if (buckets == null) {
+            buckets = (Long) redPacketRedisTemplate.opsForHash().get(redPacketLazyKey(redPacketId), "buckets");
+            if (buckets == null) {
+                return 1;
             }
-        }else {
+            cacheClaimBuckets(redPacketId, buckets);
+        }
+        return buckets;
+    }
+
+    private void cacheClaimBuckets(String redPacketId, long buckets) {
+        if (claimBuckets.size() >= CLAIM_BUCKETS_CACHE_SIZE) {
+            claimBuckets.clear();
+        }
+        claimBuckets.put(redPacketId, buckets);
+    }
+
+    //murmur3的64位混合函数，让相近的用户id也能均匀分布
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    static String grabResult(List<?> result, String userId) {
+        long status = grabStatus(result);
+        if (status == -1) {
             return "你已经抢过红包！";
         }
+        if (status != 1) {
+            return "红包已被抢完";
+        }
+        BigDecimal money = centsToMoney(((Number) result.get(1)).longValue());
+
+        log.info("用户{}抢到红包金额为{}",userId,money);
+
+        return "抢到红包金额为" + money;
     }
 
-    private List<RedPacket> divideRedPacketMoney(double totalMoney, Integer redPacketNum,String redPacketId){
-        //用二倍均值法将红包拆分并存入到一个list集合中
-        List<RedPacket> redPacketList = new ArrayList<>();
+    //抢红包脚本返回列表的第一个元素
+    private static long grabStatus(List<?> result) {
+        return result == null || result.isEmpty() ? 0 : ((Number) result.get(0)).longValue();
+    }
 
-        //剩余红包个数
-        int restRedPacketNum = redPacketNum;
+    static BigDecimal centsToMoney(long cents) {
+        return BigDecimal.valueOf(cents, 2);
+    }
 
-        Random random = new Random();
+    //红包、领取记录和抢红包结果的stream使用分片的hash tag，集群模式下在同一个slot，才能在一个lua脚本中访问
+    static String redPacketKey(String redPacketId) {
+        return RED_PACKET_KEY + RedPacketKeys.shardTag(redPacketId) + ":" + redPacketId;
+    }
 
-        for (int i = 0; i < redPacketNum - 1; i++) {
-            //该方法调用从该随机数生成器的序列中返回下一个伪随机、均匀分布的双精度值，介于 0.0 和 1.0 之间
-            double account = random.nextDouble() * (totalMoney / restRedPacketNum) * 2;
-            //防止出现金额为0
-            account = Math.max(0.01,account);
-            //金额和人数都递减
-            totalMoney = totalMoney - account;
-            restRedPacketNum--;
+    private static String redPacketLazyKey(String redPacketId) {
+        return RED_PACKET_LAZY_KEY + RedPacketKeys.shardTag(redPacketId) + ":" + redPacketId;
+    }
 
-            //account保留两位小数
-            account = Double.parseDouble(String.format("%.2f",account));
+    private static String redPacketClaimKey(String redPacketId, long bucket) {
+        return RED_PACKET_CLAIM_KEY + RedPacketKeys.shardTag(redPacketId) + ":" + redPacketId + ":" + bucket;
+    }
 
-            RedPacket redPacket = new RedPacket(account,redPacketId);
-            redPacketList.add(redPacket);
-        }
-        totalMoney = Double.parseDouble(String.format("%.2f",totalMoney));
-        RedPacket redPacket = new RedPacket(totalMoney,redPacketId);
-        redPacketList.add(redPacket);
+    private static String redPacketBloomKey(String redPacketId) {
+        return RED_PACKET_BLOOM_KEY + RedPacketKeys.shardTag(redPacketId) + ":" + redPacketId;
+    }
 
-        return redPacketList;
+    static String redPacketConsumerKey(String redPacketId) {
+        return RED_PACKET_CONSUMER_KEY + RedPacketKeys.shardTag(redPacketId) + ":" + redPacketId;
     }
 }
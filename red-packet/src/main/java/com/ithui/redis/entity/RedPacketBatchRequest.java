@@ -0,0 +1,32 @@
+package com.ithui.redis.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 批量发红包的请求，每一项是一个红包的总金额和个数
+ *
+ * @author jihui
+ */
+@AllArgsConstructor
+@NoArgsConstructor
+@Data
+public class RedPacketBatchRequest {
+
+    private List<Item> packets;
+
+    @AllArgsConstructor
+    @NoArgsConstructor
+    @Data
+    public static class Item {
+
+        //红包的总金额
+        private double money;
+
+        //红包个数
+        private int num;
+    }
+}
@@ -0,0 +1,124 @@
+package com.ithui.redis.script;
+
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.List;
+
+/**
+ * 红包用到的lua脚本，全局共享同一个实例，SHA1只计算一次
+ * 抢红包脚本返回整数列表：第一个元素是状态，抢到时第二个元素是金额（分）
+ *
+ * @author jihui
+ */
+public final class RedPacketScripts {
+
+    /**
+     * 抢红包：KEYS[1]用户领取记录（hash），KEYS[2]红包列表，KEYS[3]抢红包结果的stream
+     * ARGV[1]用户id，ARGV[2]领取记录的过期时间（秒），ARGV[3]红包id
+     * 检查是否抢过、出列一个红包、记录领取、写入结算stream在一次EVAL中完成，同一个用户并发请求也只能抢到一个
+     * 返回{-1}表示已经抢过，{0}表示红包已被抢完，{1, 金额}表示抢到
+     */
+    public static final DefaultRedisScript<List<?>> GRAB_SCRIPT = listScript(
+            "if redis.call('hexists', KEYS[1], ARGV[1]) == 1 then " +
+                    "return {-1} " +
+            "end " +
+            "local packet = redis.call('lpop', KEYS[2]) " +
+            "if not packet then " +
+                    "return {0} " +
+            "end " +
+            "redis.call('hset', KEYS[1], ARGV[1], packet) " +
+            "redis.call('expire', KEYS[1], ARGV[2]) " +
+            "redis.call('xadd', KEYS[3], '*', 'id', ARGV[3], 'userId', ARGV[1], 'cents', packet) " +
+            "return {1, tonumber(packet)}");
+
+    /**
+     * 懒拆分抢红包：KEYS[1]红包剩余金额和个数（hash：amount、count、buckets、bloomBits），KEYS[2]布隆过滤器（bitmap），
+     * KEYS[3]抢红包结果的stream，KEYS[4]用户所在的领取记录桶（hash）
+     * ARGV[1]用户id，ARGV[2]领取记录的过期时间（秒），ARGV[3]客户端生成的[0,1)随机数，
+     * ARGV[4]领取记录桶的编号，ARGV[5]、ARGV[6]用户id的两个32位哈希值，ARGV[7]红包id
+     * 抢的时候才用二倍均值法算出金额：[1, 剩余金额/剩余个数*2)分，并保证后面每个红包至少1分，最后一个拿走全部剩余
+     * 领取记录按用户哈希分到buckets个小hash中（前缀..桶号），每个桶的字段数不超过listpack的上限，只记录用户到金额（分）
+     * 桶的编号由客户端按 h1 % buckets 计算，桶的key通过KEYS传入；编号和脚本的计算结果不一致时返回{-2}，不做任何修改
+     * bloomBits大于0时先查布隆过滤器，有任何一位为0说明一定没抢过，直接跳过领取记录的查询（仍在同一次EVAL中，不减少网络往返）
+     * 随机数由客户端传入，脚本本身是确定的，返回值和GRAB_SCRIPT相同
+     */
+    public static final DefaultRedisScript<List<?>> GRAB_LAZY_SCRIPT = listScript(
+            "local packet = redis.call('hmget', KEYS[1], 'amount', 'count', 'buckets', 'bloomBits') " +
+            "local amount = tonumber(packet[1] or '0') " +
+            "local count = tonumber(packet[2] or '0') " +
+            "local buckets = tonumber(packet[3] or '1') " +
+            "local bloomBits = tonumber(packet[4] or '0') " +
+            "local h1 = tonumber(ARGV[5]) " +
+            "local h2 = tonumber(ARGV[6]) " +
+            "if h1 % buckets ~= tonumber(ARGV[4]) then " +
+                    "return {-2} " +
+            "end " +
+            "local maybeClaimed = true " +
+            "if bloomBits > 0 then " +
+                    "for i = 0, 6 do " +
+                            "if redis.call('getbit', KEYS[2], (h1 + i * h2) % bloomBits) == 0 then " +
+                                    "maybeClaimed = false " +
+                                    "break " +
+                            "end " +
+                    "end " +
+            "end " +
+            "if maybeClaimed and redis.call('hexists', KEYS[4], ARGV[1]) == 1 then " +
+                    "return {-1} " +
+            "end " +
+            "if count <= 0 then " +
+                    "return {0} " +
+            "end " +
+            "local take = amount " +
+            "if count > 1 then " +
+                    "local max = math.floor(amount * 2 / count) " +
+                    "take = 1 + math.floor(tonumber(ARGV[3]) * math.max(max - 1, 0)) " +
+                    "take = math.min(take, amount - (count - 1)) " +
+            "end " +
+            // 抢完后保留红包的hash直到过期，之后的请求仍然需要buckets判断是否抢过
+            "redis.call('hincrby', KEYS[1], 'amount', -take) " +
+            "redis.call('hincrby', KEYS[1], 'count', -1) " +
+            "redis.call('hset', KEYS[4], ARGV[1], take) " +
+            "redis.call('expire', KEYS[4], ARGV[2]) " +
+            "if bloomBits > 0 then " +
+                    "for i = 0, 6 do " +
+                            "redis.call('setbit', KEYS[2], (h1 + i * h2) % bloomBits, 1) " +
+                    "end " +
+                    "redis.call('expire', KEYS[2], ARGV[2]) " +
+            "end " +
+            "redis.call('xadd', KEYS[3], '*', 'id', ARGV[7], 'userId', ARGV[1], 'cents', take) " +
+            "return {1, take}");
+
+    /**
+     * 结算一批抢红包结果：KEYS[1]用户余额（hash，单位分），KEYS[2]抢红包结果的stream，ARGV[1]消费组
+     * 之后每三个参数是一条消息：消息id、用户id、金额（分）
+     * 只有XACK确认成功（消息仍在待处理列表中）时才加余额，重复投递的消息不会重复入账，返回实际入账的条数
+     * 入账后用XDEL删除消息，stream中只保留没有结算的消息，不按长度裁剪，结算落后时也不会丢失
+     * 先检查全部参数，有一条用户id为空或金额不是整数时整批都不确认，返回错误
+     */
+    public static final DefaultRedisScript<Long> SETTLE_SCRIPT = new DefaultRedisScript<>(
+            "for i = 2, #ARGV, 3 do " +
+                    "if ARGV[i + 1] == '' or not string.match(ARGV[i + 2], '^%-?%d+$') then " +
+                            "return redis.error_reply('invalid settlement record ' .. ARGV[i]) " +
+                    "end " +
+            "end " +
+            "local settled = 0 " +
+            "for i = 2, #ARGV, 3 do " +
+                    "if redis.call('xack', KEYS[2], ARGV[1], ARGV[i]) == 1 then " +
+                            "redis.call('hincrby', KEYS[1], ARGV[i + 1], ARGV[i + 2]) " +
+                            "redis.call('xdel', KEYS[2], ARGV[i]) " +
+                            "settled = settled + 1 " +
+                    "end " +
+            "end " +
+            "return settled", Long.class);
+
+    private RedPacketScripts() {
+    }
+
+    /**
+     * List.class只能表示原始类型，这里转成List<?>，调用方按Number读取元素
+     */
+    @SuppressWarnings("unchecked")
+    private static DefaultRedisScript<List<?>> listScript(String script) {
+        return new DefaultRedisScript<>(script, (Class<List<?>>) (Class<?>) List.class);
+    }
+}
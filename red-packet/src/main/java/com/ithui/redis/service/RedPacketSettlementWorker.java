@@ -0,0 +1,237 @@
+package com.ithui.redis.service;
+
+import com.ithui.redis.script.RedPacketScripts;
+import com.ithui.redis.util.RedPacketKeys;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.RedisStreamCommands.XClaimOptions;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * 抢红包结果的结算：抢红包脚本把结果写入所在分片的stream，这里用消费组批量读取，一次脚本调用给整批用户加余额并确认消息
+ * 每个分片的stream和余额hash使用相同的hash tag，结算脚本只访问一个slot；一个用户的余额是所有分片余额的和
+ * 每个实例是消费组中的一个消费者，启动时先处理自己没确认的消息，运行中定期认领其他消费者长时间没确认的消息后同样处理
+ * 集群模式下阻塞读取不能跨slot，一个线程轮流非阻塞地读取所有分片，所有分片都没有新消息时休眠一个轮询间隔
+ *
+ * @author jihui
+ */
+@Component
+@Log4j2
+public class RedPacketSettlementWorker {
+
+    public static final String GROUP = "settlement";
+
+    // 金额是以分为单位的整数
+    private static final Pattern CENTS = Pattern.compile("-?\\d+");
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${redpacket.settlement.enabled:true}")
+    private boolean enabled;
+
+    @Value("${redpacket.settlement.batch-size:200}")
+    private int batchSize;
+
+    @Value("${redpacket.settlement.poll-interval-millis:100}")
+    private long pollIntervalMillis;
+
+    // 其他消费者的消息超过这个时间没确认，认为它已经宕机，由本实例认领
+    @Value("${redpacket.settlement.claim-idle-millis:60000}")
+    private long claimIdleMillis;
+
+    // 消费者名称重启后不变，才能接着处理上次没确认的消息
+    @Value("${redpacket.settlement.consumer-name:settlement-${server.port:8080}}")
+    private String consumerName;
+
+    private volatile boolean running;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "red-packet-settlement");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        for (int shard = 0; shard < RedPacketKeys.SHARDS; shard++) {
+            createGroup(RedPacketKeys.grabStreamKey(shard));
+        }
+        running = true;
+        executor.execute(this::run);
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        executor.shutdownNow();
+    }
+
+    private void run() {
+        // 每个分片先从头处理本消费者上次退出时没确认的消息，记录读到的位置，null表示待处理列表已经读完
+        String[] pendingOffsets = new String[RedPacketKeys.SHARDS];
+        Arrays.fill(pendingOffsets, "0");
+        long lastClaimTime = System.currentTimeMillis();
+        while (running) {
+            try {
+                boolean idle = true;
+                for (int shard = 0; shard < RedPacketKeys.SHARDS; shard++) {
+                    String streamKey = RedPacketKeys.grabStreamKey(shard);
+                    List<MapRecord<String, Object, Object>> records = read(streamKey, pendingOffsets[shard] == null
+                            ? ReadOffset.lastConsumed() : ReadOffset.from(pendingOffsets[shard]));
+                    if (records == null || records.isEmpty()) {
+                        // 待处理的消息处理完了，下一轮开始读新消息
+                        pendingOffsets[shard] = null;
+                        continue;
+                    }
+                    if (pendingOffsets[shard] != null) {
+                        // 无法结算的消息留在待处理列表中，从它之后继续读，不会反复读到同一批
+                        pendingOffsets[shard] = records.get(records.size() - 1).getId().getValue();
+                    }
+                    idle = false;
+                    settle(shard, records);
+                }
+                if (System.currentTimeMillis() - lastClaimTime >= claimIdleMillis) {
+                    for (int shard = 0; shard < RedPacketKeys.SHARDS; shard++) {
+                        if (claimIdleMessages(shard)) {
+                            pendingOffsets[shard] = "0";
+                        }
+                    }
+                    lastClaimTime = System.currentTimeMillis();
+                }
+                if (idle) {
+                    TimeUnit.MILLISECONDS.sleep(pollIntervalMillis);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                if (!running) {
+                    return;
+                }
+                log.error("结算抢红包结果失败", e);
+                sleepQuietly();
+            }
+        }
+    }
+
+    /**
+     * 以本消费者的身份读取一个分片，offset为lastConsumed时读新消息，否则读待处理列表
+     */
+    @SuppressWarnings("unchecked")
+    private List<MapRecord<String, Object, Object>> read(String streamKey, ReadOffset offset) {
+        // read只有varargs的重载，这里只传一个StreamOffset，生成的数组不会被其他类型污染
+        return stringRedisTemplate.opsForStream().read(Consumer.from(GROUP, consumerName),
+                StreamReadOptions.empty().count(batchSize), StreamOffset.create(streamKey, offset));
+    }
+
+    /**
+     * 认领其他消费者长时间没确认的消息，一次最多认领一批
+     * 只认领消息id，认领到的消息进入本消费者的待处理列表，由下一轮从头读取待处理列表时结算
+     * @return 是否认领到了消息
+     */
+    private boolean claimIdleMessages(int shard) {
+        String streamKey = RedPacketKeys.grabStreamKey(shard);
+        PendingMessages pending = stringRedisTemplate.opsForStream().pending(streamKey, GROUP, Range.unbounded(), batchSize);
+        List<RecordId> idleIds = new ArrayList<>();
+        for (PendingMessage message : pending) {
+            if (message.getElapsedTimeSinceLastDelivery().toMillis() >= claimIdleMillis) {
+                idleIds.add(message.getId());
+            }
+        }
+        if (idleIds.isEmpty()) {
+            return false;
+        }
+        List<RecordId> claimed = stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection ->
+                connection.streamCommands().xClaimJustId(streamKey.getBytes(), GROUP, consumerName,
+                        XClaimOptions.minIdle(Duration.ofMillis(claimIdleMillis)).ids(idleIds.toArray(new RecordId[0]))));
+        int count = claimed == null ? 0 : claimed.size();
+        log.info("{}认领了分片{}的{}条超时未确认的抢红包结果", consumerName, shard, count);
+        return count > 0;
+    }
+
+    /**
+     * 一次脚本调用给整批用户加余额并确认消息，已经确认过的消息不会重复入账
+     * 缺少字段的消息无法结算，不确认，留在待处理列表中等人工处理，不让它阻塞整批
+     */
+    private void settle(int shard, List<MapRecord<String, Object, Object>> records) {
+        if (records == null || records.isEmpty()) {
+            return;
+        }
+        String streamKey = RedPacketKeys.grabStreamKey(shard);
+        List<String> args = new ArrayList<>(records.size() * 3 + 1);
+        List<RecordId> invalidIds = new ArrayList<>();
+        args.add(GROUP);
+        for (MapRecord<String, Object, Object> record : records) {
+            Map<Object, Object> value = record.getValue();
+            Object userId = value == null ? null : value.get("userId");
+            Object cents = value == null ? null : value.get("cents");
+            if (userId == null || userId.toString().isEmpty() || cents == null || !CENTS.matcher(cents.toString()).matches()) {
+                invalidIds.add(record.getId());
+                continue;
+            }
+            args.add(record.getId().getValue());
+            args.add(userId.toString());
+            args.add(cents.toString());
+        }
+        if (!invalidIds.isEmpty()) {
+            // 红包已经扣掉但没有入账，不能确认，否则这笔钱就丢了
+            log.error("分片{}的{}条抢红包结果缺少用户id或金额，无法结算，保留在待处理列表中：{}", shard, invalidIds.size(), invalidIds);
+        }
+        if (args.size() == 1) {
+            return;
+        }
+        Long settled = stringRedisTemplate.execute(RedPacketScripts.SETTLE_SCRIPT,
+                Arrays.asList(RedPacketKeys.balanceKey(shard), streamKey), args.toArray());
+        log.info("{}结算了分片{}的{}条抢红包结果", consumerName, shard, settled);
+    }
+
+    private void createGroup(String streamKey) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                    connection.streamCommands().xGroupCreate(streamKey.getBytes(), GROUP, ReadOffset.from("0"), true));
+        } catch (RedisSystemException e) {
+            // 消费组已经存在
+            String message = e.getMostSpecificCause().getMessage();
+            if (message == null || !message.contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    // 出错后等1秒再重试，redis不可用时不会刷屏
+    private void sleepQuietly() {
+        try {
+            TimeUnit.SECONDS.sleep(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
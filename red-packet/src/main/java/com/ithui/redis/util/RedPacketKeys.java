@@ -0,0 +1,43 @@
+package com.ithui.redis.util;
+
+/**
+ * 红包相关key的分片：红包按id分到SHARDS个分片，同一分片的红包、领取记录、抢红包结果的stream和用户余额使用相同的hash tag，
+ * 集群模式下在同一个slot，抢红包和结算的lua脚本只访问同一个slot的key
+ * 分片数改变后已经发出的红包会找不到，只能在没有未过期红包时修改
+ *
+ * @author jihui
+ */
+public final class RedPacketKeys {
+
+    public static final int SHARDS = 16;
+
+    private static final String GRAB_STREAM_KEY = "redpacket:grab:stream:";//抢红包结果
+    private static final String BALANCE_KEY = "redpacket:balance:";//用户余额，单位分
+
+    private RedPacketKeys() {
+    }
+
+    public static int shard(String redPacketId) {
+        return Math.floorMod(redPacketId.hashCode(), SHARDS);
+    }
+
+    public static String shardTag(int shard) {
+        return "{rp" + shard + "}";
+    }
+
+    public static String shardTag(String redPacketId) {
+        return shardTag(shard(redPacketId));
+    }
+
+    public static String grabStreamKey(int shard) {
+        return GRAB_STREAM_KEY + shardTag(shard);
+    }
+
+    public static String grabStreamKey(String redPacketId) {
+        return grabStreamKey(shard(redPacketId));
+    }
+
+    public static String balanceKey(int shard) {
+        return BALANCE_KEY + shardTag(shard);
+    }
+}
@@ -0,0 +1,56 @@
+package com.ithui.redis.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 二倍均值法拆分红包，全部以分为单位用long计算
+ * 每个红包在[1, 剩余金额/剩余个数*2)分之间随机，并给后面的红包每个至少留1分，最后一个拿走全部剩余，总和严格等于总金额
+ *
+ * @author jihui
+ */
+public final class RedPacketSplitter {
+
+    private RedPacketSplitter() {
+    }
+
+    /**
+     * @param totalCents 总金额（分）
+     * @param num 红包个数
+     * @return 每个红包的金额（分）
+     */
+    public static long[] split(long totalCents, int num) {
+        checkArguments(totalCents, num);
+        long[] shares = new long[num];
+        split(totalCents, shares);
+        return shares;
+    }
+
+    /**
+     * 拆分到调用方提供的数组中，数组长度就是红包个数，数组可以复用，拆分过程不分配任何对象
+     */
+    public static void split(long totalCents, long[] shares) {
+        int num = shares.length;
+        checkArguments(totalCents, num);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long restCents = totalCents;
+        for (int i = 0; i < num - 1; i++) {
+            int restNum = num - i;
+            long max = restCents * 2 / restNum;
+            long cents = max > 1 ? 1 + random.nextLong(max - 1) : 1;
+            // 后面的每个红包至少1分
+            cents = Math.min(cents, restCents - (restNum - 1));
+            shares[i] = cents;
+            restCents -= cents;
+        }
+        shares[num - 1] = restCents;
+    }
+
+    private static void checkArguments(long totalCents, int num) {
+        if (num <= 0) {
+            throw new IllegalArgumentException("num must be positive");
+        }
+        if (totalCents < num) {
+            throw new IllegalArgumentException("each red packet needs at least 1 cent");
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.ithui.redis.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 红包拆分的吞吐量，每次操作拆分一个红包，每秒拆分的份数 = 结果 × num
+ * 直接运行main方法，不参与mvn test
+ *
+ * @author jihui
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RedPacketSplitterBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    private int num;
+
+    private long totalCents;
+    private long[] shares;
+
+    @Setup
+    public void setUp() {
+        // 平均每个红包1元
+        totalCents = num * 100L;
+        shares = new long[num];
+    }
+
+    @Benchmark
+    public long[] split() {
+        RedPacketSplitter.split(totalCents, shares);
+        return shares;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(RedPacketSplitterBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,76 @@
+package com.ithui.redis.util;
+
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 拆分结果的总和必须严格等于总金额，每个红包至少1分
+ *
+ * @author jihui
+ */
+class RedPacketSplitterTest {
+
+    @Test
+    void oneCentEachWhenCountEqualsTotal() {
+        long[] shares = RedPacketSplitter.split(100, 100);
+        long[] expected = new long[100];
+        Arrays.fill(expected, 1);
+        assertArrayEquals(expected, shares);
+    }
+
+    @Test
+    void singlePacketTakesEverything() {
+        assertArrayEquals(new long[]{12345}, RedPacketSplitter.split(12345, 1));
+    }
+
+    @RepeatedTest(20)
+    void sumsToTotalWithAtLeastOneCent() {
+        assertSplit(10000, 7);
+        assertSplit(101, 100);
+        assertSplit(1, 1);
+    }
+
+    @Test
+    void largeCounts() {
+        assertSplit(100_000_000L, 100_000);
+        assertSplit(100_001L, 100_000);
+        assertSplit(Long.MAX_VALUE / 4, 1_000_000);
+    }
+
+    @Test
+    void reusedArrayIsOverwritten() {
+        long[] shares = new long[50];
+        RedPacketSplitter.split(5000, shares);
+        RedPacketSplitter.split(50, shares);
+        for (long share : shares) {
+            assertEquals(1, share);
+        }
+    }
+
+    @Test
+    void rejectsInvalidArguments() {
+        assertThrows(IllegalArgumentException.class, () -> RedPacketSplitter.split(100, 0));
+        assertThrows(IllegalArgumentException.class, () -> RedPacketSplitter.split(99, 100));
+        assertThrows(IllegalArgumentException.class, () -> RedPacketSplitter.split(0, new long[0]));
+    }
+
+    private static void assertSplit(long totalCents, int num) {
+        long[] shares = RedPacketSplitter.split(totalCents, num);
+        assertEquals(num, shares.length);
+        long sum = 0;
+        long min = Long.MAX_VALUE;
+        for (long share : shares) {
+            sum += share;
+            min = Math.min(min, share);
+        }
+        assertEquals(totalCents, sum, "sum of shares");
+        assertTrue(min >= 1, "every share is at least 1 cent, min was " + min);
+    }
+}
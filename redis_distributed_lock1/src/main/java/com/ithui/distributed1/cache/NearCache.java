@@ -0,0 +1,226 @@
+package com.ithui.distributed1.cache;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+/**
+ * 本地近端缓存：热点key的读取直接命中本地map，不再经过网络
+ * 通过redis的keyspace通知失效：key被修改、删除或过期时，本地副本立即删除
+ * 通知可能丢失（订阅断开重连期间），每个本地副本另有过期时间，读到的旧值最多滞后ttl
+ * 容量达到上限时先淘汰过期的副本，再近似随机淘汰一部分
+ */
+@Slf4j
+public class NearCache implements MessageListener {
+
+    // 版本号分段，加载期间同一段内有key失效时不缓存加载结果
+    private static final int VERSION_STRIPES = 64;
+    // key不存在时缓存的占位值
+    private static final Object NULL_VALUE = new Object();
+
+    private final String channelPrefix;
+    private final String keyPattern;
+    private final int maxSize;
+    private final long ttlNanos;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+    // 正在加载的key
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> loading = new ConcurrentHashMap<>();
+
+    /**
+     * @param database redis的数据库编号，keyspace通知的频道中带有数据库编号
+     * @param keyPattern 需要缓存的key的模式，例如inventory*，只订阅这些key的通知
+     */
+    public NearCache(int database, String keyPattern, int maxSize, long ttl, TimeUnit unit) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.channelPrefix = "__keyspace@" + database + "__:";
+        this.keyPattern = keyPattern;
+        this.maxSize = maxSize;
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * 订阅的keyspace通知频道模式，注册到RedisMessageListenerContainer时使用
+     */
+    public String channelPattern() {
+        return channelPrefix + keyPattern;
+    }
+
+    /**
+     * 读取key，本地副本存在且没过期时直接返回，否则用loader从redis加载并缓存
+     * 同一个key同时只有一个线程加载，其他线程等待它的结果，热点key过期时不会有大量请求同时打到redis
+     * @param loader 从redis读取的方法，返回null表示key不存在，同样会被缓存
+     */
+    @SuppressWarnings("unchecked")
+    public <V> V get(String key, Function<String, V> loader) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expireAt - System.nanoTime() > 0) {
+            return entry.value == NULL_VALUE ? null : (V) entry.value;
+        }
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = loading.putIfAbsent(key, future);
+        if (existing != null) {
+            Object value = await(existing);
+            return value == NULL_VALUE ? null : (V) value;
+        }
+        try {
+            V value = load(key, loader);
+            future.complete(value == null ? NULL_VALUE : value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    private <V> V load(String key, Function<String, V> loader) {
+        int stripe = stripe(key);
+        long version = versions.get(stripe);
+        V value = loader.apply(key);
+        if (entries.size() >= maxSize) {
+            evict();
+        }
+        Entry loaded = new Entry(value == null ? NULL_VALUE : value, System.nanoTime() + ttlNanos);
+        entries.put(key, loaded);
+        // 加载期间key可能已经失效，先放入再检查版本号，失效通知和放入无论谁先发生都不会留下旧值
+        if (versions.get(stripe) != version) {
+            entries.remove(key, loaded);
+        }
+        return value;
+    }
+
+    // 等待其他线程的加载结果，加载失败时抛出同一个异常
+    private static Object await(CompletableFuture<Object> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 本实例修改了key之后可以主动失效，不必等keyspace通知
+     */
+    public void invalidate(String key) {
+        versions.incrementAndGet(stripe(key));
+        entries.remove(key);
+        // 失效之后的读取不再等待失效之前开始的加载
+        loading.remove(key);
+    }
+
+    public void invalidateAll() {
+        for (int i = 0; i < VERSION_STRIPES; i++) {
+            versions.incrementAndGet(i);
+        }
+        entries.clear();
+        loading.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        // 频道是 __keyspace@<db>__:<key>，消息内容是事件名（set、del、expired等），任何事件都要失效
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        if (channel.startsWith(channelPrefix)) {
+            invalidate(channel.substring(channelPrefix.length()));
+        }
+    }
+
+    /**
+     * 检查redis是否开启了keyspace通知，没有开启时只能依靠过期时间
+     * @param configure 为true时尝试用CONFIG SET补上缺少的通知类型，托管的redis通常禁止CONFIG命令
+     */
+    public static boolean checkNotifications(StringRedisTemplate redisTemplate, boolean configure) {
+        // K：keyspace通知，g：del/expire/rename等通用命令，$：字符串，h：hash，x：过期，e：淘汰
+        String required = "Kg$hxe";
+        try {
+            Properties config = redisTemplate.execute((RedisCallback<Properties>) connection ->
+                    connection.serverCommands().getConfig("notify-keyspace-events"));
+            String flags = config == null ? "" : config.getProperty("notify-keyspace-events", "");
+            String missing = missingFlags(flags, required);
+            if (missing.isEmpty()) {
+                return true;
+            }
+            if (configure) {
+                redisTemplate.execute((RedisCallback<Object>) connection -> {
+                    connection.serverCommands().setConfig("notify-keyspace-events", flags + missing);
+                    return null;
+                });
+                return true;
+            }
+            log.warn("near cache: notify-keyspace-events={} is missing {}, local copies are only invalidated by ttl", flags, missing);
+        } catch (Exception e) {
+            log.warn("near cache: cannot check notify-keyspace-events, local copies may only be invalidated by ttl", e);
+        }
+        return false;
+    }
+
+    private static String missingFlags(String flags, String required) {
+        // A是g$lshzxe的简写
+        boolean all = flags.indexOf('A') >= 0;
+        StringBuilder missing = new StringBuilder();
+        for (char flag : required.toCharArray()) {
+            if (flags.indexOf(flag) < 0 && !(all && flag != 'K')) {
+                missing.append(flag);
+            }
+        }
+        return missing.toString();
+    }
+
+    /**
+     * 容量满时调用：先删除过期的副本，仍然超过90%时按遍历顺序删除，ConcurrentHashMap的遍历顺序和访问无关，近似随机淘汰
+     */
+    private void evict() {
+        long now = System.nanoTime();
+        entries.values().removeIf(entry -> entry.expireAt - now <= 0);
+        int target = maxSize - maxSize / 10;
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (entries.size() >= target && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static int stripe(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (VERSION_STRIPES - 1);
+    }
+
+    private static class Entry {
+
+        private final Object value;
+        private final long expireAt;
+
+        private Entry(Object value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+}
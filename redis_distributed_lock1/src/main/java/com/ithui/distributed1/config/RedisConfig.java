@@ -1,14 +1,22 @@
 package com.ithui.distributed1.config;
 
+import com.ithui.distributed1.cache.NearCache;
+import com.ithui.distributed1.distributedlock.LockPubSub;
 import org.redisson.Redisson;
 import org.redisson.config.Config;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.PatternTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * @author jihui
  * @date 2023/9/12 20:13
@@ -35,6 +43,33 @@ public class RedisConfig {
         return redisTemplate;
     }
 
+    /**
+     * 分布式锁的解锁通知，整个JVM只保留一个模式订阅，由LockPubSub按频道唤醒等待线程
+     * 近端缓存的keyspace通知也复用这个容器的订阅连接
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(LettuceConnectionFactory lettuceConnectionFactory,
+                                                                       LockPubSub lockPubSub, NearCache inventoryNearCache) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(lettuceConnectionFactory);
+        container.addMessageListener(lockPubSub, new PatternTopic(LockPubSub.CHANNEL_PREFIX + "*"));
+        container.addMessageListener(inventoryNearCache, new PatternTopic(inventoryNearCache.channelPattern()));
+        return container;
+    }
+
+    /**
+     * 库存的近端缓存，ttl是收不到失效通知时本地副本最多滞后的时间
+     */
+    @Bean
+    public NearCache inventoryNearCache(StringRedisTemplate stringRedisTemplate,
+                                        @Value("${spring.data.redis.database:0}") int database,
+                                        @Value("${near-cache.inventory.max-size:10000}") int maxSize,
+                                        @Value("${near-cache.inventory.ttl-millis:2000}") long ttlMillis,
+                                        @Value("${near-cache.configure-notifications:false}") boolean configureNotifications) {
+        NearCache.checkNotifications(stringRedisTemplate, configureNotifications);
+        return new NearCache(database, "inventory*", maxSize, ttlMillis, TimeUnit.MILLISECONDS);
+    }
+
     @Bean
     public Redisson redisson() {
         Config config = new Config();
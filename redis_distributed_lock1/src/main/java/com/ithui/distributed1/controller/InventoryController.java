@@ -4,8 +4,12 @@ import com.ithui.distributed1.service.InventoryService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.util.List;
+
 @RestController
 public class InventoryController {
 
@@ -22,4 +26,49 @@ public class InventoryController {
     public String getInventoryByRedisson() {
         return inventoryService.getInventoryByRedisson();
     }
+
+    @GetMapping("/inventoryByLua")
+    public String getInventoryByLua() {
+        return inventoryService.getInventoryByLua();
+    }
+
+    @GetMapping("/inventory/query")
+    public String queryInventory() {
+        return inventoryService.queryInventory();
+    }
+
+    @GetMapping("/inventory/queryCached")
+    public String queryInventoryCached() {
+        return inventoryService.queryInventoryCached();
+    }
+
+    @GetMapping("/inventoryByWriteLock")
+    public String getInventoryByWriteLock() {
+        return inventoryService.getInventoryByWriteLock();
+    }
+
+    @GetMapping("/inventoryByLease")
+    public String getInventoryByLease() {
+        return inventoryService.getInventoryByLease();
+    }
+
+    @GetMapping("/inventoryBySegment")
+    public String getInventoryBySegment() {
+        return inventoryService.getInventoryBySegment();
+    }
+
+    @GetMapping("/inventoryBySemaphore")
+    public String getInventoryBySemaphore() {
+        return inventoryService.getInventoryBySemaphore();
+    }
+
+    @GetMapping("/inventory/checkout")
+    public String checkout(@RequestParam(value = "skus", required = false) List<String> skus) {
+        return inventoryService.checkout(skus);
+    }
+
+    @PostMapping("/inventoryBySegment/init")
+    public String initSegmentInventory(@RequestParam("total") int total) {
+        return inventoryService.initSegmentInventory(total);
+    }
 }
@@ -1,22 +1,22 @@
 package com.ithui.distributed1.distributedlock;
 
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 
 import java.util.Arrays;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 
 public class DistributedLock implements Lock {
 
-    private StringRedisTemplate stringRedisTemplate;
+    protected StringRedisTemplate stringRedisTemplate;
+    protected LockPubSub lockPubSub;
+    protected LockWatchdog lockWatchdog;
 
-    private String lockName;// 锁的名称==>KEYS[1]
-    private String threadUUID;// 当前线程的UUID==>ARGV[1]
-    private long expireTime; // 锁的过期时间==>ARGV[2]
+    protected String lockName;// 锁的名称==>KEYS[1]
+    protected String channelName;// 解锁通知的频道==>KEYS[2]
+    protected String threadUUID;// 当前线程的UUID==>ARGV[1]
+    protected long expireTime; // 锁的过期时间==>ARGV[2]
 
 //    public DistributedLock(StringRedisTemplate stringRedisTemplate, String lockName){
 //        this.stringRedisTemplate = stringRedisTemplate;
@@ -25,110 +25,190 @@ public class DistributedLock implements Lock {
 //        this.expireTime = 50; // 默认50秒过期时间
 //    }
 
-    public DistributedLock(StringRedisTemplate stringRedisTemplate, String lockName,String uuid){
+    public DistributedLock(StringRedisTemplate stringRedisTemplate, LockPubSub lockPubSub, LockWatchdog lockWatchdog,
+                           String lockName, String uuid){
         this.stringRedisTemplate = stringRedisTemplate;
+        this.lockPubSub = lockPubSub;
+        this.lockWatchdog = lockWatchdog;
         this.lockName = lockName;
+        this.channelName = LockPubSub.channelName(lockName);
         this.threadUUID = uuid + ":" + Thread.currentThread().getId();
         this.expireTime = 25; // 默认50秒过期时间
     }
 
+    /**
+     * 以指定的持有者身份创建锁，持有者不绑定到创建锁的线程，例如整个JVM共用一个持有者
+     */
+    static DistributedLock ownedBy(StringRedisTemplate stringRedisTemplate, LockPubSub lockPubSub, LockWatchdog lockWatchdog,
+                                   String lockName, String owner) {
+        DistributedLock lock = new DistributedLock(stringRedisTemplate, lockPubSub, lockWatchdog, lockName, owner);
+        lock.threadUUID = owner;
+        return lock;
+    }
+
     @Override
     public void lock() {
-        tryLock();
+        try {
+            acquire(-1, false);
+        } catch (InterruptedException e) {
+            // 不可中断模式下acquire不会抛出中断异常
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        acquire(-1, true);
     }
 
     @Override
     public boolean tryLock() {
-        try {
-            return tryLock(-1, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        // 只尝试一次，不等待
+        if (tryAcquire() == null) {
+            this.resetExpireTime();
+            return true;
         }
+        cancelAcquire();
         return false;
     }
 
     @Override
     public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
-        // 真正实现分布式锁的逻辑
-        if(time == -1){
-            String script =
-                    "if redis.call('exists', KEYS[1]) == 0 or redis.call('hexists', KEYS[1], ARGV[1]) == 1  then " +
-                            "redis.call('hincrby', KEYS[1], ARGV[1], 1) " +
-                            "redis.call('expire', KEYS[1], ARGV[2]) " +
-                            "return 1 " +
-                    "else " +
-                            "return 0 " +
-                    "end";
-            System.out.println("lock: " + lockName + " -----> " + threadUUID);
-            while(!stringRedisTemplate.execute(new DefaultRedisScript<>(script, Boolean.class), Arrays.asList(lockName), threadUUID, String.valueOf(expireTime))){
-                try {
-                    TimeUnit.MILLISECONDS.sleep(20);
-                }catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
+        // time == -1 表示一直等待直到加锁成功
+        return acquire(time == -1 ? -1 : Math.max(0, unit.toNanos(time)), true);
+    }
+
+    /**
+     * 真正实现分布式锁的逻辑
+     * @param waitNanos 最长等待时间（纳秒），-1表示一直等待
+     * @param interruptible 是否响应中断，不响应时等待结束后恢复线程的中断标记
+     */
+    private boolean acquire(long waitNanos, boolean interruptible) throws InterruptedException {
+        if (interruptible && Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        System.out.println("lock: " + lockName + " -----> " + threadUUID);
+        Long ttl = tryAcquire();
+        if (ttl == null) {
             // 加锁成功，并实现自动续期
             this.resetExpireTime();
             return true;
         }
-        return false;
+        if (waitNanos == 0) {
+            cancelAcquire();
+            return false;
+        }
+        // 截止时间在多次重试之间共享，保证总等待时间不超过waitNanos
+        long deadline = System.nanoTime() + waitNanos;
+        boolean interrupted = false;
+        boolean acquired = false;
+        // 加锁失败后不再每20ms轮询一次，而是订阅解锁通知，锁释放后再去竞争
+        String waitChannelName = waitChannelName();
+        LockPubSub.LockEntry entry = lockPubSub.subscribe(waitChannelName);
+        try {
+            // 登记之后必须再尝试一次，防止在登记之前锁已经被释放
+            while ((ttl = tryAcquire()) != null) {
+                // 以锁的剩余过期时间作为兜底，即使丢失了解锁通知也能继续竞争
+                // 锁没有过期时间时（pttl返回-1）按一个完整的过期周期等待
+                long waitMillis = ttl >= 0 ? ttl : TimeUnit.SECONDS.toMillis(expireTime);
+                long waitTime = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+                if (waitNanos >= 0) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    waitTime = Math.min(waitTime, remaining);
+                }
+                try {
+                    entry.getLatch().tryAcquire(waitTime, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    if (interruptible) {
+                        throw e;
+                    }
+                    interrupted = true;
+                }
+            }
+            acquired = true;
+            onAcquiredAfterWait(entry);
+        } finally {
+            lockPubSub.unsubscribe(waitChannelName, entry);
+            if (!acquired) {
+                // 等待超时或被中断，放弃加锁
+                cancelAcquire();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // 加锁成功，并实现自动续期
+        this.resetExpireTime();
+        return true;
+    }
+
+    /**
+     * 尝试加锁一次
+     * @return null表示加锁成功，否则返回锁的剩余过期时间（毫秒）
+     */
+    protected Long tryAcquire() {
+        return stringRedisTemplate.execute(LockScripts.LOCK_SCRIPT, Arrays.asList(lockName), threadUUID, String.valueOf(expireTime));
+    }
+
+    /**
+     * 等待解锁通知的频道
+     */
+    protected String waitChannelName() {
+        return channelName;
+    }
+
+    /**
+     * 放弃加锁时调用，默认什么也不做
+     */
+    protected void cancelAcquire() {
+    }
+
+    /**
+     * 等待之后加锁成功时调用，默认什么也不做
+     */
+    protected void onAcquiredAfterWait(LockPubSub.LockEntry entry) {
     }
 
+    /**
+     * 释放一次锁
+     * @return 0表示不是锁的持有者，1表示锁已被完全释放，2表示重入次数减一
+     */
+    protected Long release() {
+        return stringRedisTemplate.execute(
+                LockScripts.UNLOCK_SCRIPT,
+                Arrays.asList(lockName, channelName),
+                threadUUID
+        );
+    }
 
     @Override
     public void unlock() {
         System.out.println("unlock: " + lockName + " -----> " + threadUUID);
-        String script =
-                "local exists = redis.call('hexists', KEYS[1], ARGV[1])\n" +
-                        "if exists == 0 then\n" +
-                        "    return 0\n" +
-                        "else\n" +
-                        "    local count = redis.call('hincrby', KEYS[1], ARGV[1], -1)\n" +
-                        "    if count == 0 then\n" +
-                        "        redis.call('del', KEYS[1])\n" +
-                        "        return 1\n" +
-                        "    else\n" +
-                        "        return 2\n" +
-                        "    end\n" +
-                        "end";
-
-        Long flag = stringRedisTemplate.execute(
-                new DefaultRedisScript<>(script, Long.class),
-                Arrays.asList(lockName),
-                threadUUID
-        );
+        Long flag = release();
 
         if (flag == null || flag == 0) {
             throw new RuntimeException("this thread does not hold the lock");
         }
+        if (flag == 1) {
+            // 锁已被完全释放，取消自动续期
+            cancelExpireRenewal();
+        }
     }
 
-    // 自动续期
-    private void resetExpireTime() {
-        String script =
-                "if redis.call('hexists', KEYS[1], ARGV[1]) == 1 then " +
-                        "return redis.call('expire', KEYS[1], ARGV[2])" +
-                "else " +
-                        "return 0 " +
-                "end";
-        // 每隔 expireTime/3 秒执行一次自动续期
-        new Timer().schedule(new TimerTask() {
-            @Override
-            public void run() {
-                if(stringRedisTemplate.execute(new DefaultRedisScript<>(script, Boolean.class), Arrays.asList(lockName), threadUUID, String.valueOf(expireTime))){
-                    resetExpireTime();
-                }
-            }
-        }, expireTime * 1000 / 3);
+    // 自动续期，交给JVM共用的看门狗，不再为每次加锁单独创建Timer线程
+    protected void resetExpireTime() {
+        lockWatchdog.watch(lockName, threadUUID, TimeUnit.SECONDS.toMillis(expireTime));
     }
 
-    // 暂时用不到
-    @Override
-    public void lockInterruptibly() throws InterruptedException {
-
+    protected void cancelExpireRenewal() {
+        lockWatchdog.unwatch(lockName, threadUUID);
     }
+
     @Override
     public Condition newCondition() {
-        return null;
+        throw new UnsupportedOperationException("DistributedLock does not support conditions");
     }
 }
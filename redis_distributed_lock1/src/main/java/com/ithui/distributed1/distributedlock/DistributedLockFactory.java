@@ -1,29 +1,137 @@
 package com.ithui.distributed1.distributedlock;
 
 import cn.hutool.core.util.IdUtil;
+import jakarta.annotation.PostConstruct;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 
 @Component
 public class DistributedLockFactory {
 
     @Autowired
     private StringRedisTemplate redisTemplate;
+    @Autowired
+    private LockPubSub lockPubSub;
+    @Autowired
+    private LockWatchdog lockWatchdog;
 
     private String uuid;
 
+    // 锁条带数，大于0时业务key按hash分配到固定数量的锁上，0表示每个业务key一把锁
+    @Value("${distributed.lock.stripes:0}")
+    private int stripes;
+
+    // 两级锁：本地有等待者时是否直接交接redis锁，以及连续交接的最大次数
+    @Value("${distributed.lock.local-handoff:true}")
+    private boolean localHandoff;
+    @Value("${distributed.lock.max-handoffs:16}")
+    private int maxHandoffs;
+
+    private final ConcurrentHashMap<String, LocalCoalescingLock.Entry> localLockEntries = new ConcurrentHashMap<>();
+
     public DistributedLockFactory() {
         this.uuid = IdUtil.simpleUUID();
     }
 
+    /**
+     * 启动时预加载加锁、解锁、续期脚本，之后都通过EVALSHA调用
+     */
+    @PostConstruct
+    public void loadScripts() {
+        LockScripts.load(redisTemplate);
+    }
+
+    /**
+     * 按业务key获取锁，不同的key互不阻塞，例如 getLock("inventory", skuId)
+     */
+    public Lock getLock(String business, String key) {
+        return new DistributedLock(redisTemplate, lockPubSub, lockWatchdog, lockName(business, key), uuid);
+    }
+
+    /**
+     * 按业务key获取公平锁，等待者在redis中按先来后到排队，解锁时只唤醒队首
+     */
+    public Lock getFairLock(String business, String key) {
+        return new FairDistributedLock(redisTemplate, lockPubSub, lockWatchdog, lockName(business, key), uuid);
+    }
+
+    /**
+     * 按业务key获取读写锁，读锁之间共享，写锁独占
+     * 读写锁的hash结构和普通锁不同，名称以rwlock:开头，不会和同一个业务key的普通锁冲突
+     */
+    public ReadWriteLock getReadWriteLock(String business, String key) {
+        return new DistributedReadWriteLock(redisTemplate, lockPubSub, lockWatchdog,
+                keyName("rwlock", business, key, stripes), uuid);
+    }
+
+    /**
+     * 按业务key获取信号量，整个集群最多permits个持有者同时执行，每个许可都有租约，持有者宕机后自动归还
+     * 信号量不参与锁条带，不同的key各自计数
+     */
+    public DistributedSemaphore getSemaphore(String business, String key, int permits) {
+        return new DistributedSemaphore(redisTemplate, lockPubSub, lockWatchdog,
+                keyName("semaphore", business, key, 0), permits, uuid);
+    }
+
+    /**
+     * 按一组业务key获取批量锁，一次网络往返全部锁住，和getLock(business, key)得到的锁互斥
+     * 锁的名称去重并排序，不同线程以相同的顺序加锁；集群模式下这些业务key必须带有相同的hash tag（例如{order1}sku1），否则会报CROSSSLOT
+     */
+    public Lock getMultiLock(String business, Collection<String> keys) {
+        TreeSet<String> lockNames = new TreeSet<>();
+        for (String key : keys) {
+            lockNames.add(lockName(business, key));
+        }
+        return new DistributedMultiLock(redisTemplate, lockPubSub, lockWatchdog, new ArrayList<>(lockNames), uuid);
+    }
+
+    /**
+     * 按业务key获取两级锁，同一个JVM内的线程先在本地排队，只有队首线程去竞争redis锁
+     */
+    public Lock getCoalescedLock(String business, String key) {
+        String lockName = lockName(business, key);
+        return new LocalCoalescingLock(localLockEntries, lockName,
+                () -> DistributedLock.ownedBy(redisTemplate, lockPubSub, lockWatchdog, lockName, uuid),
+                localHandoff, maxHandoffs);
+    }
+
+    /**
+     * 根据业务key生成锁的名称：lock:业务:{key或条带号}
+     * 花括号是redis cluster的hash tag，不同的key分散到不同的slot；key中已经带有hash tag时直接使用
+     */
+    public String lockName(String business, String key) {
+        return keyName("lock", business, key, stripes);
+    }
+
+    private static String keyName(String prefix, String business, String key, int stripes) {
+        if (business == null || key == null) {
+            throw new IllegalArgumentException("business and key cannot be null");
+        }
+        String tag;
+        if (stripes > 0) {
+            tag = "{" + Math.floorMod(key.hashCode(), stripes) + "}";
+        } else if (LockKeys.hasHashTag(key)) {
+            tag = key;
+        } else {
+            tag = "{" + key + "}";
+        }
+        return prefix + ":" + business + ":" + tag;
+    }
+
     public Lock getDistributedLock(String typeName) {
         if (typeName == null) {
             throw new IllegalArgumentException("typeName cannot be null");
         }else if (typeName.equals("redis")) {
-            return new DistributedLock(redisTemplate,"redisLock",uuid);
+            return new DistributedLock(redisTemplate, lockPubSub, lockWatchdog, "redisLock", uuid);
         }else if(typeName.equals("mysql")) {
             //TODO: implement mysql lock
             return null;
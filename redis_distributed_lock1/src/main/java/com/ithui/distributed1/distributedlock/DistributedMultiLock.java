@@ -0,0 +1,178 @@
+package com.ithui.distributed1.distributedlock;
+
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * 批量锁：一个lua脚本原子地锁住多个资源，要么全部成功要么一个都不加，只需要一次网络往返
+ * 锁的名称事先排好序，每把锁和普通锁的结构相同，和单独加锁的线程之间也是互斥的
+ * 所有锁共用一个过期时间，看门狗只登记一个续期任务
+ * 集群模式下lua脚本的所有key必须在同一个slot，业务key需要带有相同的hash tag；锁条带按key分到不同的条带，不能保证在同一个slot
+ */
+public class DistributedMultiLock implements Lock {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final LockPubSub lockPubSub;
+    private final LockWatchdog lockWatchdog;
+
+    private final List<String> lockNames;// 排好序的锁的名称==>KEYS
+    private final String threadUUID;// 当前线程的UUID==>ARGV[1]
+    private final long expireTime;// 锁的过期时间（秒）
+
+    public DistributedMultiLock(StringRedisTemplate stringRedisTemplate, LockPubSub lockPubSub, LockWatchdog lockWatchdog,
+                                List<String> lockNames, String uuid) {
+        if (lockNames.isEmpty()) {
+            throw new IllegalArgumentException("lockNames cannot be empty");
+        }
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.lockPubSub = lockPubSub;
+        this.lockWatchdog = lockWatchdog;
+        this.lockNames = lockNames;
+        this.threadUUID = uuid + ":" + Thread.currentThread().getId();
+        this.expireTime = 25;
+    }
+
+    @Override
+    public void lock() {
+        try {
+            acquire(-1, false);
+        } catch (InterruptedException e) {
+            // 不可中断模式下acquire不会抛出中断异常
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        acquire(-1, true);
+    }
+
+    @Override
+    public boolean tryLock() {
+        if (tryAcquire().isEmpty()) {
+            resetExpireTime();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        // time == -1 表示一直等待直到加锁成功
+        return acquire(time == -1 ? -1 : Math.max(0, unit.toNanos(time)), true);
+    }
+
+    /**
+     * 和普通锁一样订阅解锁通知，区别是每次失败后改为等待当前挡路的那把锁的频道
+     * @param waitNanos 最长等待时间（纳秒），-1表示一直等待
+     */
+    private boolean acquire(long waitNanos, boolean interruptible) throws InterruptedException {
+        if (interruptible && Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        System.out.println("lock: " + lockNames + " -----> " + threadUUID);
+        List<?> blocked = tryAcquire();
+        if (blocked.isEmpty()) {
+            resetExpireTime();
+            return true;
+        }
+        if (waitNanos == 0) {
+            return false;
+        }
+        long deadline = System.nanoTime() + waitNanos;
+        boolean interrupted = false;
+        String waitChannelName = null;
+        LockPubSub.LockEntry entry = null;
+        try {
+            while (!blocked.isEmpty()) {
+                String channelName = LockPubSub.channelName(lockNames.get(((Number) blocked.get(0)).intValue()));
+                if (!channelName.equals(waitChannelName)) {
+                    // 挡路的锁变了，换一个频道，登记之后必须再尝试一次，防止在登记之前锁已经被释放
+                    if (entry != null) {
+                        lockPubSub.unsubscribe(waitChannelName, entry);
+                    }
+                    waitChannelName = channelName;
+                    entry = lockPubSub.subscribe(waitChannelName);
+                    blocked = tryAcquire();
+                    continue;
+                }
+                // 以挡路的锁的剩余过期时间作为兜底
+                long ttl = ((Number) blocked.get(1)).longValue();
+                long waitTime = TimeUnit.MILLISECONDS.toNanos(ttl >= 0 ? ttl : TimeUnit.SECONDS.toMillis(expireTime));
+                if (waitNanos >= 0) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    waitTime = Math.min(waitTime, remaining);
+                }
+                try {
+                    entry.getLatch().tryAcquire(waitTime, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    if (interruptible) {
+                        throw e;
+                    }
+                    interrupted = true;
+                }
+                blocked = tryAcquire();
+            }
+        } finally {
+            if (entry != null) {
+                lockPubSub.unsubscribe(waitChannelName, entry);
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        resetExpireTime();
+        return true;
+    }
+
+    /**
+     * 尝试一次性锁住所有资源
+     * @return 空列表表示加锁成功，否则返回{被占用的锁的下标, 剩余过期时间（毫秒）}
+     */
+    private List<?> tryAcquire() {
+        List<?> blocked = stringRedisTemplate.execute(LockScripts.MULTI_LOCK_SCRIPT, lockNames,
+                threadUUID, String.valueOf(TimeUnit.SECONDS.toMillis(expireTime)));
+        if (blocked == null) {
+            throw new IllegalStateException("multi lock script returned no result");
+        }
+        return blocked;
+    }
+
+    @Override
+    public void unlock() {
+        System.out.println("unlock: " + lockNames + " -----> " + threadUUID);
+        Long flag = stringRedisTemplate.execute(LockScripts.MULTI_UNLOCK_SCRIPT, lockNames,
+                threadUUID, LockPubSub.CHANNEL_PREFIX);
+        if (flag == null || flag == 0) {
+            throw new RuntimeException("this thread does not hold all the locks");
+        }
+        if (flag == 1) {
+            // 所有锁都已被完全释放，取消自动续期
+            lockWatchdog.unwatch(leaseId());
+        }
+    }
+
+    // 所有锁共用一个续期任务，一次脚本调用续期全部的锁
+    private void resetExpireTime() {
+        long leaseMillis = TimeUnit.SECONDS.toMillis(expireTime);
+        lockWatchdog.watch(leaseId(), LockScripts.MULTI_RENEW_SCRIPT, lockNames,
+                Arrays.asList(threadUUID, String.valueOf(leaseMillis)), leaseMillis);
+    }
+
+    private String leaseId() {
+        return String.join(",", lockNames) + ":" + threadUUID;
+    }
+
+    @Override
+    public Condition newCondition() {
+        throw new UnsupportedOperationException("DistributedMultiLock does not support conditions");
+    }
+}
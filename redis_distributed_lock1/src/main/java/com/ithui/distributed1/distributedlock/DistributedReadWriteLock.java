@@ -0,0 +1,145 @@
+package com.ithui.distributed1.distributedlock;
+
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
+/**
+ * 基于redis的读写锁，读锁之间共享，写锁独占，都可以重入
+ * 锁仍然是一个hash：mode字段记录读写模式，持有者:read / 持有者:write 字段记录重入次数，持有者:expire 字段记录读者租约的到期时间
+ * 写者等待时会设置等待标记，新的读者不能再加锁，避免写者饿死
+ */
+public class DistributedReadWriteLock implements ReadWriteLock {
+
+    // 写者等待标记的过期时间，等待中的写者每隔一半的时间重新设置一次
+    private static final long WRITER_WAIT_MILLIS = 5000;
+
+    private final ReadLock readLock;
+    private final WriteLock writeLock;
+
+    public DistributedReadWriteLock(StringRedisTemplate stringRedisTemplate, LockPubSub lockPubSub, LockWatchdog lockWatchdog,
+                                    String lockName, String uuid) {
+        this.readLock = new ReadLock(stringRedisTemplate, lockPubSub, lockWatchdog, lockName, uuid);
+        this.writeLock = new WriteLock(stringRedisTemplate, lockPubSub, lockWatchdog, lockName, uuid);
+    }
+
+    @Override
+    public Lock readLock() {
+        return readLock;
+    }
+
+    @Override
+    public Lock writeLock() {
+        return writeLock;
+    }
+
+    private static String readChannelName(String lockName) {
+        return LockPubSub.channelName(lockName) + ":read";
+    }
+
+    private static String writeChannelName(String lockName) {
+        return LockPubSub.channelName(lockName) + ":write";
+    }
+
+    private static List<String> lockKeys(String lockName) {
+        return Arrays.asList(lockName, LockKeys.companionKey(lockName, "writer-waiting"));
+    }
+
+    public static class ReadLock extends DistributedLock {
+
+        private final List<String> keys;
+
+        private ReadLock(StringRedisTemplate stringRedisTemplate, LockPubSub lockPubSub, LockWatchdog lockWatchdog,
+                         String lockName, String uuid) {
+            super(stringRedisTemplate, lockPubSub, lockWatchdog, lockName, uuid);
+            this.keys = lockKeys(lockName);
+        }
+
+        @Override
+        protected Long tryAcquire() {
+            return stringRedisTemplate.execute(LockScripts.READ_LOCK_SCRIPT, keys, threadUUID,
+                    String.valueOf(TimeUnit.SECONDS.toMillis(expireTime)), String.valueOf(WRITER_WAIT_MILLIS));
+        }
+
+        @Override
+        protected String waitChannelName() {
+            return readChannelName(lockName);
+        }
+
+        /**
+         * 读者可以同时持有锁，一个读者被唤醒并加锁成功后继续唤醒本JVM内的下一个读者
+         */
+        @Override
+        protected void onAcquiredAfterWait(LockPubSub.LockEntry entry) {
+            entry.getLatch().release();
+        }
+
+        @Override
+        protected Long release() {
+            return stringRedisTemplate.execute(LockScripts.READ_UNLOCK_SCRIPT, Collections.singletonList(lockName),
+                    threadUUID, writeChannelName(lockName), readChannelName(lockName));
+        }
+
+        @Override
+        protected void resetExpireTime() {
+            long leaseMillis = TimeUnit.SECONDS.toMillis(expireTime);
+            lockWatchdog.watch(leaseId(), LockScripts.READ_RENEW_SCRIPT, Collections.singletonList(lockName),
+                    Arrays.asList(threadUUID, String.valueOf(leaseMillis)), leaseMillis);
+        }
+
+        @Override
+        protected void cancelExpireRenewal() {
+            lockWatchdog.unwatch(leaseId());
+        }
+
+        private String leaseId() {
+            return lockName + ":" + threadUUID + ":read";
+        }
+    }
+
+    public static class WriteLock extends DistributedLock {
+
+        private final List<String> keys;
+
+        private WriteLock(StringRedisTemplate stringRedisTemplate, LockPubSub lockPubSub, LockWatchdog lockWatchdog,
+                          String lockName, String uuid) {
+            super(stringRedisTemplate, lockPubSub, lockWatchdog, lockName, uuid);
+            this.keys = lockKeys(lockName);
+        }
+
+        @Override
+        protected Long tryAcquire() {
+            return stringRedisTemplate.execute(LockScripts.WRITE_LOCK_SCRIPT, keys, threadUUID,
+                    String.valueOf(TimeUnit.SECONDS.toMillis(expireTime)), String.valueOf(WRITER_WAIT_MILLIS));
+        }
+
+        @Override
+        protected String waitChannelName() {
+            return writeChannelName(lockName);
+        }
+
+        @Override
+        protected Long release() {
+            return stringRedisTemplate.execute(LockScripts.WRITE_UNLOCK_SCRIPT, keys,
+                    threadUUID, writeChannelName(lockName), readChannelName(lockName));
+        }
+
+        /**
+         * 写锁的字段是 持有者:write，续期脚本按这个字段判断是否仍然持有
+         */
+        @Override
+        protected void resetExpireTime() {
+            lockWatchdog.watch(lockName, threadUUID + ":write", TimeUnit.SECONDS.toMillis(expireTime));
+        }
+
+        @Override
+        protected void cancelExpireRenewal() {
+            lockWatchdog.unwatch(lockName, threadUUID + ":write");
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.ithui.distributed1.distributedlock;
+
+import cn.hutool.core.util.IdUtil;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于redis的计数信号量，整个集群最多permits个持有者同时执行
+ * 每次获取得到一个带租约的许可id，由看门狗续期，持有者宕机后许可过期自动归还；归还时发布通知唤醒等待者
+ */
+public class DistributedSemaphore {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final LockPubSub lockPubSub;
+    private final LockWatchdog lockWatchdog;
+
+    private final String name;// 信号量的名称==>KEYS[1]
+    private final List<String> keys;
+    private final String channelName;
+    private final int permits;
+    private final String uuid;
+    private final long leaseMillis;
+
+    public DistributedSemaphore(StringRedisTemplate stringRedisTemplate, LockPubSub lockPubSub, LockWatchdog lockWatchdog,
+                                String name, int permits, String uuid) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("permits must be positive");
+        }
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.lockPubSub = lockPubSub;
+        this.lockWatchdog = lockWatchdog;
+        this.name = name;
+        this.keys = Collections.singletonList(name);
+        this.channelName = LockPubSub.channelName(name);
+        this.permits = permits;
+        this.uuid = uuid;
+        this.leaseMillis = TimeUnit.SECONDS.toMillis(25);
+    }
+
+    /**
+     * 获取一个许可，一直等待直到成功
+     * @return 许可id，归还时使用
+     */
+    public String acquire() throws InterruptedException {
+        return tryAcquire(-1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 只尝试一次，不等待
+     * @return 许可id，获取失败返回null
+     */
+    public String tryAcquire() {
+        String permitId = newPermitId();
+        if (tryAcquire(permitId) == null) {
+            watch(permitId);
+            return permitId;
+        }
+        return null;
+    }
+
+    /**
+     * 在给定的时间内获取一个许可，time == -1 表示一直等待
+     * @return 许可id，超时返回null
+     */
+    public String tryAcquire(long time, TimeUnit unit) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        String permitId = newPermitId();
+        Long ttl = tryAcquire(permitId);
+        if (ttl == null) {
+            watch(permitId);
+            return permitId;
+        }
+        long waitNanos = time == -1 ? -1 : Math.max(0, unit.toNanos(time));
+        if (waitNanos == 0) {
+            return null;
+        }
+        long deadline = System.nanoTime() + waitNanos;
+        // 和分布式锁一样订阅归还通知，以最早的许可过期时间作为兜底
+        LockPubSub.LockEntry entry = lockPubSub.subscribe(channelName);
+        try {
+            while ((ttl = tryAcquire(permitId)) != null) {
+                long waitTime = TimeUnit.MILLISECONDS.toNanos(Math.max(ttl, 1));
+                if (waitNanos >= 0) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return null;
+                    }
+                    waitTime = Math.min(waitTime, remaining);
+                }
+                entry.getLatch().tryAcquire(waitTime, TimeUnit.NANOSECONDS);
+            }
+        } finally {
+            lockPubSub.unsubscribe(channelName, entry);
+        }
+        watch(permitId);
+        return permitId;
+    }
+
+    /**
+     * 归还许可
+     */
+    public void release(String permitId) {
+        lockWatchdog.unwatch(leaseId(permitId));
+        Long flag = stringRedisTemplate.execute(LockScripts.SEMAPHORE_RELEASE_SCRIPT, keys, permitId, channelName);
+        if (flag == null || flag == 0) {
+            throw new RuntimeException("permit " + permitId + " does not exist or has expired");
+        }
+    }
+
+    /**
+     * 当前可用的许可数，不清理过期的许可，仅供参考
+     */
+    public int availablePermits() {
+        Long used = stringRedisTemplate.opsForZSet().zCard(name);
+        return permits - (used == null ? 0 : used.intValue());
+    }
+
+    private Long tryAcquire(String permitId) {
+        return stringRedisTemplate.execute(LockScripts.SEMAPHORE_ACQUIRE_SCRIPT, keys,
+                String.valueOf(permits), permitId, String.valueOf(leaseMillis));
+    }
+
+    private void watch(String permitId) {
+        lockWatchdog.watch(leaseId(permitId), LockScripts.SEMAPHORE_RENEW_SCRIPT, keys,
+                Arrays.asList(permitId, String.valueOf(leaseMillis)), leaseMillis);
+    }
+
+    private String newPermitId() {
+        return uuid + ":" + IdUtil.simpleUUID();
+    }
+
+    private String leaseId(String permitId) {
+        return name + ":" + permitId;
+    }
+}
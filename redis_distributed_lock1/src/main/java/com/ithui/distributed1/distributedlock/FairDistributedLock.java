@@ -0,0 +1,54 @@
+package com.ithui.distributed1.distributedlock;
+
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 公平的分布式锁，等待者按先来后到在redis的list中排队，zset中记录每个等待者的超时时间
+ * 解锁时只唤醒排在队首的等待者；等待者宕机后超时时间不再刷新，会被后续的加锁或解锁清理出队列
+ */
+public class FairDistributedLock extends DistributedLock {
+
+    // 等待者的超时时间，等待者每隔一半的时间重新执行一次加锁脚本刷新
+    private static final long WAITER_TIMEOUT_MILLIS = 5000;
+
+    private final List<String> keys;
+    private final String waiterChannelPrefix;
+
+    public FairDistributedLock(StringRedisTemplate stringRedisTemplate, LockPubSub lockPubSub, LockWatchdog lockWatchdog,
+                               String lockName, String uuid) {
+        super(stringRedisTemplate, lockPubSub, lockWatchdog, lockName, uuid);
+        this.keys = Arrays.asList(lockName,
+                LockKeys.companionKey(lockName, "queue"),
+                LockKeys.companionKey(lockName, "timeout"));
+        this.waiterChannelPrefix = channelName + ":";
+    }
+
+    @Override
+    protected Long tryAcquire() {
+        return stringRedisTemplate.execute(LockScripts.FAIR_LOCK_SCRIPT, keys, threadUUID,
+                String.valueOf(TimeUnit.SECONDS.toMillis(expireTime)), String.valueOf(WAITER_TIMEOUT_MILLIS),
+                waiterChannelPrefix);
+    }
+
+    /**
+     * 每个等待者订阅自己的频道，解锁时只有队首的等待者会被唤醒
+     */
+    @Override
+    protected String waitChannelName() {
+        return waiterChannelPrefix + threadUUID;
+    }
+
+    @Override
+    protected void cancelAcquire() {
+        stringRedisTemplate.execute(LockScripts.FAIR_CANCEL_SCRIPT, keys, threadUUID, waiterChannelPrefix);
+    }
+
+    @Override
+    protected Long release() {
+        return stringRedisTemplate.execute(LockScripts.FAIR_UNLOCK_SCRIPT, keys, threadUUID, waiterChannelPrefix);
+    }
+}
@@ -0,0 +1,219 @@
+package com.ithui.distributed1.distributedlock;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * 两级锁：同一个JVM内的线程先在本地公平锁上排队，只有排到队首的线程才去竞争redis分布式锁
+ * redis锁的持有者是整个JVM，本地还有等待者时可以不释放redis锁，直接交给下一个本地线程
+ */
+public class LocalCoalescingLock implements Lock {
+
+    private final ConcurrentHashMap<String, Entry> entries;
+    private final String lockName;
+    private final Supplier<DistributedLock> redisLockSupplier;
+    private final boolean handoff;
+    private final int maxHandoffs;
+
+    /**
+     * @param entries JVM内共享的本地锁表，同名的锁共用一个Entry
+     * @param redisLockSupplier 创建以JVM为持有者的redis锁
+     * @param handoff 本地有等待者时是否直接交接redis锁
+     * @param maxHandoffs 连续交接的最大次数，超过后释放redis锁，避免其他实例饿死
+     */
+    public LocalCoalescingLock(ConcurrentHashMap<String, Entry> entries, String lockName,
+                               Supplier<DistributedLock> redisLockSupplier, boolean handoff, int maxHandoffs) {
+        this.entries = entries;
+        this.lockName = lockName;
+        this.redisLockSupplier = redisLockSupplier;
+        this.handoff = handoff;
+        this.maxHandoffs = maxHandoffs;
+    }
+
+    @Override
+    public void lock() {
+        Entry entry = retain();
+        entry.localLock.lock();
+        try {
+            acquireRedisLock(entry, () -> {
+                entry.redisLock.lock();
+                return true;
+            });
+        } catch (InterruptedException e) {
+            // lock()不响应中断，不会走到这里
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        Entry entry = retain();
+        try {
+            entry.localLock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            cancelWaiting(entry);
+            throw e;
+        }
+        acquireRedisLock(entry, () -> {
+            entry.redisLock.lockInterruptibly();
+            return true;
+        });
+    }
+
+    @Override
+    public boolean tryLock() {
+        Entry entry = retain();
+        if (!entry.localLock.tryLock()) {
+            release(entry);
+            return false;
+        }
+        try {
+            return acquireRedisLock(entry, entry.redisLock::tryLock);
+        } catch (InterruptedException e) {
+            // 只尝试一次，不会走到这里
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(time);
+        Entry entry = retain();
+        boolean locked;
+        try {
+            locked = entry.localLock.tryLock(time, unit);
+        } catch (InterruptedException e) {
+            cancelWaiting(entry);
+            throw e;
+        }
+        if (!locked) {
+            cancelWaiting(entry);
+            return false;
+        }
+        // 本地排队花掉的时间也计入等待时间
+        return acquireRedisLock(entry, () -> entry.redisLock.tryLock(
+                Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+    }
+
+    @Override
+    public void unlock() {
+        Entry entry = entries.get(lockName);
+        if (entry == null || !entry.localLock.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException("this thread does not hold the lock");
+        }
+        try {
+            if (entry.localLock.getHoldCount() == 1) {
+                if (handoff && entry.handoffs < maxHandoffs && entry.localLock.hasQueuedThreads()) {
+                    // 本地还有等待者，redis锁直接交给下一个线程，不经过网络
+                    entry.handoffs++;
+                } else {
+                    entry.redisHeld = false;
+                    entry.handoffs = 0;
+                    entry.redisLock.unlock();
+                }
+            }
+        } finally {
+            entry.localLock.unlock();
+            release(entry);
+        }
+    }
+
+    @Override
+    public Condition newCondition() {
+        throw new UnsupportedOperationException("LocalCoalescingLock does not support conditions");
+    }
+
+    /**
+     * 已持有本地锁，如果redis锁还没有被本JVM持有则去竞争，失败时释放本地锁
+     */
+    private boolean acquireRedisLock(Entry entry, RedisAcquirer acquirer) throws InterruptedException {
+        boolean acquired = false;
+        try {
+            if (entry.redisHeld) {
+                acquired = true;
+            } else if (acquirer.acquire()) {
+                entry.redisHeld = true;
+                entry.handoffs = 0;
+                acquired = true;
+            }
+            return acquired;
+        } finally {
+            if (!acquired) {
+                entry.localLock.unlock();
+                release(entry);
+            }
+        }
+    }
+
+    /**
+     * 本地等待超时或被中断后退出排队，前一个持有者可能已经把redis锁交接给了本线程，
+     * 如果此时已经没有其他人在排队，需要把redis锁释放掉，否则看门狗会一直续期
+     */
+    private void cancelWaiting(Entry entry) {
+        try {
+            if (entry.localLock.tryLock()) {
+                try {
+                    if (entry.redisHeld && !entry.localLock.hasQueuedThreads()) {
+                        entry.redisHeld = false;
+                        entry.handoffs = 0;
+                        entry.redisLock.unlock();
+                    }
+                } finally {
+                    entry.localLock.unlock();
+                }
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            release(entry);
+        }
+    }
+
+    /**
+     * 引用计数，持有者和等待者都计数，归零时才从本地锁表中移除，保证同名的线程始终在同一个本地锁上排队
+     */
+    private Entry retain() {
+        return entries.compute(lockName, (key, entry) -> {
+            if (entry == null) {
+                entry = new Entry(redisLockSupplier.get());
+            }
+            entry.references++;
+            return entry;
+        });
+    }
+
+    private void release(Entry entry) {
+        entries.computeIfPresent(lockName, (key, current) -> {
+            if (current != entry) {
+                return current;
+            }
+            return --current.references == 0 ? null : current;
+        });
+    }
+
+    @FunctionalInterface
+    private interface RedisAcquirer {
+        boolean acquire() throws InterruptedException;
+    }
+
+    public static class Entry {
+
+        private final ReentrantLock localLock = new ReentrantLock(true);
+        private final DistributedLock redisLock;
+
+        // 以下字段只在持有localLock时读写
+        private boolean redisHeld;
+        private int handoffs;
+
+        // 引用计数，只在ConcurrentHashMap.compute中修改
+        private int references;
+
+        private Entry(DistributedLock redisLock) {
+            this.redisLock = redisLock;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.ithui.distributed1.distributedlock;
+
+/**
+ * 锁相关的key命名工具
+ */
+public final class LockKeys {
+
+    private LockKeys() {
+    }
+
+    /**
+     * key中是否带有redis cluster的hash tag，即第一个 { 之后有非空内容并以 } 结束
+     */
+    public static boolean hasHashTag(String key) {
+        int start = key.indexOf('{');
+        if (start < 0) {
+            return false;
+        }
+        int end = key.indexOf('}', start + 1);
+        return end > start + 1;
+    }
+
+    /**
+     * 锁的附属key（等待队列等），必须和锁落在同一个slot上，lua脚本才能在集群中执行
+     * 锁名带hash tag时直接拼接后缀，否则把锁名整体作为hash tag，计算出的slot和锁名相同
+     */
+    public static String companionKey(String lockName, String suffix) {
+        if (hasHashTag(lockName)) {
+            return lockName + ":" + suffix;
+        }
+        return "{" + lockName + "}:" + suffix;
+    }
+}
@@ -0,0 +1,71 @@
+package com.ithui.distributed1.distributedlock;
+
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 解锁通知的订阅者，整个JVM共用一个模式订阅（CHANNEL_PREFIX*）
+ * 等待锁的线程按频道登记到entries中，收到解锁消息后唤醒一个等待者去竞争锁
+ */
+@Component
+public class LockPubSub implements MessageListener {
+
+    // 解锁通知频道的前缀，完整频道名为 前缀 + 锁的名称
+    public static final String CHANNEL_PREFIX = "distributed_lock__channel:";
+
+    private final ConcurrentHashMap<String, LockEntry> entries = new ConcurrentHashMap<>();
+
+    public static String channelName(String lockName) {
+        return CHANNEL_PREFIX + lockName;
+    }
+
+    /**
+     * 登记等待者，同一个频道的等待者共用一个LockEntry
+     * 必须在最后一次尝试加锁之前登记，否则可能错过解锁通知
+     */
+    public LockEntry subscribe(String channelName) {
+        return entries.compute(channelName, (key, entry) -> {
+            if (entry == null) {
+                entry = new LockEntry();
+            }
+            entry.counter++;
+            return entry;
+        });
+    }
+
+    public void unsubscribe(String channelName, LockEntry entry) {
+        entries.computeIfPresent(channelName, (key, current) -> {
+            if (current != entry) {
+                return current;
+            }
+            return --current.counter == 0 ? null : current;
+        });
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channelName = new String(message.getChannel(), StandardCharsets.UTF_8);
+        LockEntry entry = entries.get(channelName);
+        if (entry != null) {
+            // 每条解锁消息只唤醒一个等待者，避免惊群
+            entry.latch.release();
+        }
+    }
+
+    public static class LockEntry {
+
+        // 等待者计数，只在ConcurrentHashMap.compute中修改
+        private int counter;
+
+        private final Semaphore latch = new Semaphore(0);
+
+        public Semaphore getLatch() {
+            return latch;
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package com.ithui.distributed1.distributedlock;
+
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 分布式锁用到的lua脚本，全局共享同一个实例，SHA1只计算一次
+ * RedisTemplate.execute会优先使用EVALSHA，服务端返回NOSCRIPT时再退回EVAL
+ */
+public final class LockScripts {
+
+    /**
+     * 加锁：KEYS[1]锁的名称，ARGV[1]持有者，ARGV[2]过期时间（秒）
+     * 返回nil表示加锁成功，否则返回锁的剩余过期时间（毫秒）
+     */
+    public static final DefaultRedisScript<Long> LOCK_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('exists', KEYS[1]) == 0 or redis.call('hexists', KEYS[1], ARGV[1]) == 1  then " +
+                    "redis.call('hincrby', KEYS[1], ARGV[1], 1) " +
+                    "redis.call('expire', KEYS[1], ARGV[2]) " +
+                    "return nil " +
+            "else " +
+                    "return redis.call('pttl', KEYS[1]) " +
+            "end", Long.class);
+
+    /**
+     * 解锁：KEYS[1]锁的名称，KEYS[2]解锁通知的频道，ARGV[1]持有者
+     * 返回0表示不是锁的持有者，1表示锁已被完全释放，2表示重入次数减一
+     */
+    public static final DefaultRedisScript<Long> UNLOCK_SCRIPT = new DefaultRedisScript<>(
+            "local exists = redis.call('hexists', KEYS[1], ARGV[1])\n" +
+            "if exists == 0 then\n" +
+            "    return 0\n" +
+            "else\n" +
+            "    local count = redis.call('hincrby', KEYS[1], ARGV[1], -1)\n" +
+            "    if count == 0 then\n" +
+            "        redis.call('del', KEYS[1])\n" +
+            "        redis.call('publish', KEYS[2], ARGV[1])\n" +
+            "        return 1\n" +
+            "    else\n" +
+            "        return 2\n" +
+            "    end\n" +
+            "end", Long.class);
+
+    /**
+     * 续期：KEYS[1]锁的名称，ARGV[1]持有者，ARGV[2]过期时间（毫秒）
+     */
+    public static final DefaultRedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('hexists', KEYS[1], ARGV[1]) == 1 then " +
+                    "return redis.call('pexpire', KEYS[1], ARGV[2]) " +
+            "else " +
+                    "return 0 " +
+            "end", Long.class);
+
+    /**
+     * 公平锁的公共片段：用redis服务端时间计算now，并从队首开始清理超时未刷新的等待者
+     */
+    private static final String PURGE_STALE_WAITERS =
+            "local time = redis.call('time') " +
+            "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) " +
+            "while true do " +
+                    "local first = redis.call('lindex', KEYS[2], 0) " +
+                    "if first == false then break end " +
+                    "local deadline = redis.call('zscore', KEYS[3], first) " +
+                    "if deadline ~= false and tonumber(deadline) > now then break end " +
+                    "redis.call('lpop', KEYS[2]) " +
+                    "redis.call('zrem', KEYS[3], first) " +
+            "end ";
+
+    /**
+     * 公平锁加锁：KEYS[1]锁的名称，KEYS[2]等待队列，KEYS[3]等待者的超时时间
+     * ARGV[1]持有者，ARGV[2]过期时间（毫秒），ARGV[3]等待者的超时时间（毫秒），ARGV[4]等待者频道的前缀
+     * 锁空闲且自己排在队首（或队列为空）时才能加锁，否则排到队尾，返回下一次重试前最多等待的毫秒数
+     */
+    public static final DefaultRedisScript<Long> FAIR_LOCK_SCRIPT = new DefaultRedisScript<>(
+            PURGE_STALE_WAITERS +
+            "if redis.call('hexists', KEYS[1], ARGV[1]) == 1 then " +
+                    "redis.call('hincrby', KEYS[1], ARGV[1], 1) " +
+                    "redis.call('pexpire', KEYS[1], ARGV[2]) " +
+                    "return nil " +
+            "end " +
+            "local head = redis.call('lindex', KEYS[2], 0) " +
+            "if redis.call('exists', KEYS[1]) == 0 then " +
+                    "if head == false or head == ARGV[1] then " +
+                            "if head == ARGV[1] then " +
+                                    "redis.call('lpop', KEYS[2]) " +
+                                    "redis.call('zrem', KEYS[3], ARGV[1]) " +
+                            "end " +
+                            "redis.call('hset', KEYS[1], ARGV[1], 1) " +
+                            "redis.call('pexpire', KEYS[1], ARGV[2]) " +
+                            "return nil " +
+                    "end " +
+                    // 锁是空闲的，但应该由队首的等待者加锁，提醒它一次
+                    "redis.call('publish', ARGV[4] .. head, ARGV[1]) " +
+            "end " +
+            "if redis.call('zscore', KEYS[3], ARGV[1]) == false then " +
+                    "redis.call('rpush', KEYS[2], ARGV[1]) " +
+            "end " +
+            "redis.call('zadd', KEYS[3], now + tonumber(ARGV[3]), ARGV[1]) " +
+            "redis.call('pexpire', KEYS[2], ARGV[3]) " +
+            "redis.call('pexpire', KEYS[3], ARGV[3]) " +
+            // 等待者必须在超时之前重新执行脚本刷新自己的超时时间
+            "local refresh = math.floor(tonumber(ARGV[3]) / 2) " +
+            "local ttl = redis.call('pttl', KEYS[1]) " +
+            "if ttl < 0 or ttl > refresh then " +
+                    "return refresh " +
+            "end " +
+            "return ttl", Long.class);
+
+    /**
+     * 公平锁解锁：KEYS同加锁，ARGV[1]持有者，ARGV[2]等待者频道的前缀
+     * 锁被完全释放后只通知排在队首的等待者，返回值同UNLOCK_SCRIPT
+     */
+    public static final DefaultRedisScript<Long> FAIR_UNLOCK_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('hexists', KEYS[1], ARGV[1]) == 0 then " +
+                    "return 0 " +
+            "end " +
+            "if redis.call('hincrby', KEYS[1], ARGV[1], -1) > 0 then " +
+                    "return 2 " +
+            "end " +
+            "redis.call('del', KEYS[1]) " +
+            PURGE_STALE_WAITERS +
+            "local head = redis.call('lindex', KEYS[2], 0) " +
+            "if head ~= false then " +
+                    "redis.call('publish', ARGV[2] .. head, ARGV[1]) " +
+            "end " +
+            "return 1", Long.class);
+
+    /**
+     * 公平锁放弃等待：KEYS同加锁，ARGV[1]持有者，ARGV[2]等待者频道的前缀
+     * 从队列中移除自己，锁空闲时通知新的队首
+     */
+    public static final DefaultRedisScript<Long> FAIR_CANCEL_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('lrem', KEYS[2], 0, ARGV[1]) " +
+            "redis.call('zrem', KEYS[3], ARGV[1]) " +
+            "if redis.call('exists', KEYS[1]) == 0 then " +
+                    "local head = redis.call('lindex', KEYS[2], 0) " +
+                    "if head ~= false then " +
+                            "redis.call('publish', ARGV[2] .. head, ARGV[1]) " +
+                    "end " +
+            "end " +
+            "return 1", Long.class);
+
+    /**
+     * 读锁加锁：KEYS[1]锁的名称，KEYS[2]写者等待标记
+     * ARGV[1]持有者，ARGV[2]过期时间（毫秒），ARGV[3]写者等待标记的过期时间（毫秒）
+     * hash中mode字段记录读写模式，每个读者有 持有者:read（重入次数）和 持有者:expire（租约到期的毫秒时间戳）两个字段，
+     * 读者宕机后租约到期，由写者加锁时清理；读者的状态都在锁的hash中，脚本只访问KEYS中声明的key
+     * 有写者在等待时新的读者不能加锁（写优先），已持有读锁的重入和写锁持有者降级不受限制
+     */
+    public static final DefaultRedisScript<Long> READ_LOCK_SCRIPT = new DefaultRedisScript<>(
+            "local readField = ARGV[1] .. ':read' " +
+            "local mode = redis.call('hget', KEYS[1], 'mode') " +
+            "local ok = false " +
+            "if mode == false then " +
+                    "redis.call('hset', KEYS[1], 'mode', 'read') " +
+                    "ok = true " +
+            "elseif mode == 'read' then " +
+                    "ok = redis.call('hexists', KEYS[1], readField) == 1 or redis.call('exists', KEYS[2]) == 0 " +
+            "else " +
+                    "ok = redis.call('hexists', KEYS[1], ARGV[1] .. ':write') == 1 " +
+            "end " +
+            "if ok then " +
+                    "local time = redis.call('time') " +
+                    "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) " +
+                    "redis.call('hincrby', KEYS[1], readField, 1) " +
+                    "redis.call('hset', KEYS[1], ARGV[1] .. ':expire', now + tonumber(ARGV[2])) " +
+                    "redis.call('pexpire', KEYS[1], ARGV[2]) " +
+                    "return nil " +
+            "end " +
+            "local refresh = math.floor(tonumber(ARGV[3]) / 2) " +
+            "local ttl = redis.call('pttl', KEYS[1]) " +
+            "if ttl < 0 or ttl > refresh then " +
+                    "return refresh " +
+            "end " +
+            "return ttl", Long.class);
+
+    /**
+     * 写锁加锁：KEYS、ARGV同读锁
+     * 读模式下先清理租约已经到期的读者，没有读者后才能加写锁；加锁失败时设置写者等待标记，阻止新的读者进入
+     */
+    public static final DefaultRedisScript<Long> WRITE_LOCK_SCRIPT = new DefaultRedisScript<>(
+            "local writeField = ARGV[1] .. ':write' " +
+            "local mode = redis.call('hget', KEYS[1], 'mode') " +
+            "if mode == 'read' then " +
+                    "local time = redis.call('time') " +
+                    "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) " +
+                    "local alive = 0 " +
+                    "for _, field in ipairs(redis.call('hkeys', KEYS[1])) do " +
+                            "if string.sub(field, -5) == ':read' then " +
+                                    "local expireField = string.sub(field, 1, -6) .. ':expire' " +
+                                    "local expire = tonumber(redis.call('hget', KEYS[1], expireField) or '0') " +
+                                    "if expire <= now then " +
+                                            "redis.call('hdel', KEYS[1], field, expireField) " +
+                                    "else " +
+                                            "alive = alive + 1 " +
+                                    "end " +
+                            "end " +
+                    "end " +
+                    "if alive == 0 then " +
+                            "redis.call('del', KEYS[1]) " +
+                            "mode = false " +
+                    "end " +
+            "end " +
+            "if mode == false then " +
+                    "redis.call('hset', KEYS[1], 'mode', 'write', writeField, 1) " +
+                    "redis.call('pexpire', KEYS[1], ARGV[2]) " +
+                    "return nil " +
+            "end " +
+            "if mode == 'write' and redis.call('hexists', KEYS[1], writeField) == 1 then " +
+                    "redis.call('hincrby', KEYS[1], writeField, 1) " +
+                    "redis.call('pexpire', KEYS[1], ARGV[2]) " +
+                    "return nil " +
+            "end " +
+            "redis.call('set', KEYS[2], 1, 'px', ARGV[3]) " +
+            "local refresh = math.floor(tonumber(ARGV[3]) / 2) " +
+            "local ttl = redis.call('pttl', KEYS[1]) " +
+            "if ttl < 0 or ttl > refresh then " +
+                    "return refresh " +
+            "end " +
+            "return ttl", Long.class);
+
+    /**
+     * 读锁解锁：KEYS[1]锁的名称，ARGV[1]持有者，ARGV[2]写者频道，ARGV[3]读者频道
+     * 最后一个读者离开后删除锁并通知等待者，返回值同UNLOCK_SCRIPT
+     */
+    public static final DefaultRedisScript<Long> READ_UNLOCK_SCRIPT = new DefaultRedisScript<>(
+            "local readField = ARGV[1] .. ':read' " +
+            "if redis.call('hexists', KEYS[1], readField) == 0 then " +
+                    "return 0 " +
+            "end " +
+            "if redis.call('hincrby', KEYS[1], readField, -1) > 0 then " +
+                    "return 2 " +
+            "end " +
+            "redis.call('hdel', KEYS[1], readField, ARGV[1] .. ':expire') " +
+            "if redis.call('hlen', KEYS[1]) <= 1 then " +
+                    "redis.call('del', KEYS[1]) " +
+                    "redis.call('publish', ARGV[2], ARGV[1]) " +
+                    "redis.call('publish', ARGV[3], ARGV[1]) " +
+            "end " +
+            "return 1", Long.class);
+
+    /**
+     * 写锁解锁：KEYS[1]锁的名称，KEYS[2]写者等待标记，ARGV[1]持有者，ARGV[2]写者频道，ARGV[3]读者频道
+     * 写锁持有者降级获取过读锁时，释放写锁后切换为读模式；同时清除等待标记，
+     * 还在等待的写者重试时会重新设置，返回值同UNLOCK_SCRIPT
+     */
+    public static final DefaultRedisScript<Long> WRITE_UNLOCK_SCRIPT = new DefaultRedisScript<>(
+            "local writeField = ARGV[1] .. ':write' " +
+            "if redis.call('hexists', KEYS[1], writeField) == 0 then " +
+                    "return 0 " +
+            "end " +
+            "if redis.call('hincrby', KEYS[1], writeField, -1) > 0 then " +
+                    "return 2 " +
+            "end " +
+            "redis.call('hdel', KEYS[1], writeField) " +
+            "if redis.call('hlen', KEYS[1]) <= 1 then " +
+                    "redis.call('del', KEYS[1]) " +
+            "else " +
+                    "redis.call('hset', KEYS[1], 'mode', 'read') " +
+            "end " +
+            "redis.call('del', KEYS[2]) " +
+            "redis.call('publish', ARGV[2], ARGV[1]) " +
+            "redis.call('publish', ARGV[3], ARGV[1]) " +
+            "return 1", Long.class);
+
+    /**
+     * 读锁续期：KEYS[1]锁的名称，ARGV[1]持有者，ARGV[2]过期时间（毫秒）
+     * 租约已经到期的读者不再续期，它随时可能被写者清理
+     */
+    public static final DefaultRedisScript<Long> READ_RENEW_SCRIPT = new DefaultRedisScript<>(
+            "local expireField = ARGV[1] .. ':expire' " +
+            "local time = redis.call('time') " +
+            "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) " +
+            "if redis.call('hexists', KEYS[1], ARGV[1] .. ':read') == 0 " +
+                    "or tonumber(redis.call('hget', KEYS[1], expireField) or '0') <= now then " +
+                    "return 0 " +
+            "end " +
+            "redis.call('hset', KEYS[1], expireField, now + tonumber(ARGV[2])) " +
+            "return redis.call('pexpire', KEYS[1], ARGV[2])", Long.class);
+
+    /**
+     * 信号量获取许可：KEYS[1]信号量的名称（zset，成员是许可id，分数是许可的过期时间）
+     * ARGV[1]许可总数，ARGV[2]许可id，ARGV[3]租约时间（毫秒）
+     * 先清理已经过期的许可，返回nil表示获取成功，否则返回最早的许可过期前的毫秒数
+     */
+    public static final DefaultRedisScript<Long> SEMAPHORE_ACQUIRE_SCRIPT = new DefaultRedisScript<>(
+            "local time = redis.call('time') " +
+            "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) " +
+            "redis.call('zremrangebyscore', KEYS[1], '-inf', now) " +
+            "if redis.call('zcard', KEYS[1]) < tonumber(ARGV[1]) then " +
+                    "redis.call('zadd', KEYS[1], now + tonumber(ARGV[3]), ARGV[2]) " +
+                    "if redis.call('pttl', KEYS[1]) < tonumber(ARGV[3]) then " +
+                            "redis.call('pexpire', KEYS[1], ARGV[3]) " +
+                    "end " +
+                    "return nil " +
+            "end " +
+            "local first = redis.call('zrange', KEYS[1], 0, 0, 'withscores') " +
+            "return tonumber(first[2]) - now", Long.class);
+
+    /**
+     * 信号量归还许可：KEYS[1]信号量的名称，ARGV[1]许可id，ARGV[2]通知频道
+     * 返回1表示归还成功，0表示许可已经过期或不存在
+     */
+    public static final DefaultRedisScript<Long> SEMAPHORE_RELEASE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('zrem', KEYS[1], ARGV[1]) == 1 then " +
+                    "redis.call('publish', ARGV[2], ARGV[1]) " +
+                    "return 1 " +
+            "end " +
+            "return 0", Long.class);
+
+    /**
+     * 信号量许可续期：KEYS[1]信号量的名称，ARGV[1]许可id，ARGV[2]租约时间（毫秒）
+     * 许可已经过期时不再续期，它可能已经被其他持有者顶替
+     */
+    public static final DefaultRedisScript<Long> SEMAPHORE_RENEW_SCRIPT = new DefaultRedisScript<>(
+            "local time = redis.call('time') " +
+            "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) " +
+            "local expireAt = redis.call('zscore', KEYS[1], ARGV[1]) " +
+            "if expireAt == false or tonumber(expireAt) <= now then " +
+                    "return 0 " +
+            "end " +
+            "redis.call('zadd', KEYS[1], now + tonumber(ARGV[2]), ARGV[1]) " +
+            "if redis.call('pttl', KEYS[1]) < tonumber(ARGV[2]) then " +
+                    "redis.call('pexpire', KEYS[1], ARGV[2]) " +
+            "end " +
+            "return 1", Long.class);
+
+    /**
+     * 批量加锁：KEYS按顺序排好的锁的名称，ARGV[1]持有者，ARGV[2]过期时间（毫秒）
+     * 全部空闲（或都是自己持有）时一次性全部加锁，返回空列表；否则一个都不加，返回{被占用的锁的下标(从0开始), 剩余过期时间}
+     * 集群模式下所有key必须在同一个slot，即业务key带有相同的hash tag
+     */
+    @SuppressWarnings("rawtypes")
+    public static final DefaultRedisScript<List> MULTI_LOCK_SCRIPT = new DefaultRedisScript<>(
+            "for i = 1, #KEYS do " +
+                    "if redis.call('exists', KEYS[i]) == 1 and redis.call('hexists', KEYS[i], ARGV[1]) == 0 then " +
+                            "return {i - 1, redis.call('pttl', KEYS[i])} " +
+                    "end " +
+            "end " +
+            "for i = 1, #KEYS do " +
+                    "redis.call('hincrby', KEYS[i], ARGV[1], 1) " +
+                    "redis.call('pexpire', KEYS[i], ARGV[2]) " +
+            "end " +
+            "return {}", List.class);
+
+    /**
+     * 批量解锁：KEYS锁的名称，ARGV[1]持有者，ARGV[2]解锁通知频道的前缀
+     * 返回0表示不是所有锁的持有者（此时不做任何修改），1表示全部被完全释放，2表示还有锁的重入次数没有归零
+     */
+    public static final DefaultRedisScript<Long> MULTI_UNLOCK_SCRIPT = new DefaultRedisScript<>(
+            "for i = 1, #KEYS do " +
+                    "if redis.call('hexists', KEYS[i], ARGV[1]) == 0 then " +
+                            "return 0 " +
+                    "end " +
+            "end " +
+            "local released = 1 " +
+            "for i = 1, #KEYS do " +
+                    "if redis.call('hincrby', KEYS[i], ARGV[1], -1) == 0 then " +
+                            "redis.call('del', KEYS[i]) " +
+                            "redis.call('publish', ARGV[2] .. KEYS[i], ARGV[1]) " +
+                    "else " +
+                            "released = 2 " +
+                    "end " +
+            "end " +
+            "return released", Long.class);
+
+    /**
+     * 批量续期：KEYS锁的名称，ARGV[1]持有者，ARGV[2]过期时间（毫秒）
+     * 只要还持有其中一把锁就返回1
+     */
+    public static final DefaultRedisScript<Long> MULTI_RENEW_SCRIPT = new DefaultRedisScript<>(
+            "local renewed = 0 " +
+            "for i = 1, #KEYS do " +
+                    "if redis.call('hexists', KEYS[i], ARGV[1]) == 1 then " +
+                            "redis.call('pexpire', KEYS[i], ARGV[2]) " +
+                            "renewed = 1 " +
+                    "end " +
+            "end " +
+            "return renewed", Long.class);
+
+    private static final List<RedisScript<?>> ALL_SCRIPTS = List.of(LOCK_SCRIPT, UNLOCK_SCRIPT, RENEW_SCRIPT,
+            FAIR_LOCK_SCRIPT, FAIR_UNLOCK_SCRIPT, FAIR_CANCEL_SCRIPT,
+            READ_LOCK_SCRIPT, WRITE_LOCK_SCRIPT, READ_UNLOCK_SCRIPT, WRITE_UNLOCK_SCRIPT, READ_RENEW_SCRIPT,
+            SEMAPHORE_ACQUIRE_SCRIPT, SEMAPHORE_RELEASE_SCRIPT, SEMAPHORE_RENEW_SCRIPT,
+            MULTI_LOCK_SCRIPT, MULTI_UNLOCK_SCRIPT, MULTI_RENEW_SCRIPT);
+
+    private LockScripts() {
+    }
+
+    /**
+     * SCRIPT LOAD 预加载所有脚本，之后的调用只需要发送SHA1
+     */
+    public static void load(StringRedisTemplate stringRedisTemplate) {
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            for (RedisScript<?> script : ALL_SCRIPTS) {
+                connection.scriptingCommands().scriptLoad(script.getScriptAsString().getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+    }
+}
@@ -0,0 +1,167 @@
+package com.ithui.distributed1.distributedlock;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分布式锁的看门狗，整个JVM共用一个续期线程
+ * 持有中的锁登记在leases中，每个周期把到期需要续期的锁放在一个pipeline里批量续期，解锁时取消续期
+ */
+@Slf4j
+@Component
+public class LockWatchdog {
+
+    // 检查周期，每个锁在过期时间的1/3时续期
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    private final ConcurrentHashMap<String, Lease> leases = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "distributed-lock-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::renewLeases, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 加锁成功后登记续期，同一个持有者重入时只保留一条记录
+     */
+    public void watch(String lockName, String owner, long leaseMillis) {
+        watch(leaseKey(lockName, owner), LockScripts.RENEW_SCRIPT, Collections.singletonList(lockName),
+                Arrays.asList(owner, String.valueOf(leaseMillis)), leaseMillis);
+    }
+
+    /**
+     * 用自定义的续期脚本登记续期，脚本返回1表示续期成功，其他值表示租约已经丢失
+     * @param leaseId 租约的唯一标识，取消续期时使用
+     */
+    public void watch(String leaseId, RedisScript<Long> renewScript, List<String> keys, List<String> args, long leaseMillis) {
+        leases.putIfAbsent(leaseId, new Lease(leaseId, renewScript, keys, args, leaseMillis));
+    }
+
+    /**
+     * 锁被完全释放后取消续期
+     */
+    public void unwatch(String lockName, String owner) {
+        unwatch(leaseKey(lockName, owner));
+    }
+
+    public void unwatch(String leaseId) {
+        leases.remove(leaseId);
+    }
+
+    private void renewLeases() {
+        try {
+            long now = System.currentTimeMillis();
+            List<Lease> dueLeases = new ArrayList<>();
+            for (Lease lease : leases.values()) {
+                if (now - lease.lastRenewed >= lease.leaseMillis / 3) {
+                    dueLeases.add(lease);
+                }
+            }
+            if (dueLeases.isEmpty()) {
+                return;
+            }
+            List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Lease lease : dueLeases) {
+                    connection.scriptingCommands().evalSha(lease.renewScript.getSha1(), ReturnType.INTEGER,
+                            lease.numKeys, lease.keysAndArgs);
+                }
+                return null;
+            });
+            for (int i = 0; i < dueLeases.size(); i++) {
+                Lease lease = dueLeases.get(i);
+                if (Long.valueOf(1L).equals(results.get(i))) {
+                    lease.lastRenewed = now;
+                } else {
+                    // 锁已经不属于当前持有者（过期或被删除），不再续期
+                    leases.remove(lease.leaseId, lease);
+                }
+            }
+        } catch (Exception e) {
+            // 续期失败时保留登记，下个周期重试，不能让异常终止续期线程
+            log.warn("distributed lock watchdog: renew {} leases failed", leases.size(), e);
+            if (isNoScript(e)) {
+                reloadScripts();
+            }
+        }
+    }
+
+    // pipeline中的EVALSHA不会自动退回EVAL，redis重启或执行过SCRIPT FLUSH后需要重新加载
+    // redis仍不可用时加载也会失败，异常不能抛出，否则scheduleWithFixedDelay不再执行后续的续期
+    private void reloadScripts() {
+        try {
+            LockScripts.load(stringRedisTemplate);
+        } catch (Exception e) {
+            log.warn("distributed lock watchdog: reload lock scripts failed, retry in next cycle", e);
+        }
+    }
+
+    private static boolean isNoScript(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause.getMessage() != null && cause.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String leaseKey(String lockName, String owner) {
+        return lockName + ":" + owner;
+    }
+
+    private static class Lease {
+
+        private final String leaseId;
+        private final RedisScript<Long> renewScript;
+        private final int numKeys;
+        private final byte[][] keysAndArgs;
+        private final long leaseMillis;
+        private volatile long lastRenewed;
+
+        private Lease(String leaseId, RedisScript<Long> renewScript, List<String> keys, List<String> args, long leaseMillis) {
+            this.leaseId = leaseId;
+            this.renewScript = renewScript;
+            this.numKeys = keys.size();
+            this.keysAndArgs = new byte[keys.size() + args.size()][];
+            int i = 0;
+            for (String key : keys) {
+                keysAndArgs[i++] = key.getBytes(StandardCharsets.UTF_8);
+            }
+            for (String arg : args) {
+                keysAndArgs[i++] = arg.getBytes(StandardCharsets.UTF_8);
+            }
+            this.leaseMillis = leaseMillis;
+            this.lastRenewed = System.currentTimeMillis();
+        }
+    }
+}
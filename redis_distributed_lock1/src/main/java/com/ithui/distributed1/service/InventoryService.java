@@ -1,19 +1,44 @@
 package com.ithui.distributed1.service;
 
+import com.ithui.distributed1.cache.NearCache;
 import com.ithui.distributed1.distributedlock.DistributedLockFactory;
+import com.ithui.distributed1.distributedlock.DistributedSemaphore;
+import jakarta.annotation.PostConstruct;
 import org.redisson.Redisson;
 import org.redisson.api.RLock;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.Lock;
 
 @Service
 public class InventoryService {
 
+    /**
+     * 检查库存并扣减，KEYS[1]库存的key，ARGV[1]扣减数量
+     * 库存足够时返回扣减后的剩余库存，否则返回-1
+     */
+    private static final DefaultRedisScript<Long> DEDUCT_INVENTORY_SCRIPT = new DefaultRedisScript<>(
+            "local stock = tonumber(redis.call('get', KEYS[1]) or '0') " +
+            "if stock >= tonumber(ARGV[1]) then " +
+                    "return redis.call('decrby', KEYS[1], ARGV[1]) " +
+            "else " +
+                    "return -1 " +
+            "end", Long.class);
+
     @Value( "${server.port}" )
     private String port;
 
@@ -24,13 +49,266 @@ public class InventoryService {
 
     @Autowired
     private Redisson redisson;
+    @Autowired
+    private LocalInventoryLease localInventoryLease;
+    @Autowired
+    private NearCache inventoryNearCache;
+
+    // 获取分布式锁的最长等待时间，超时后直接返回繁忙，避免请求线程堆积
+    @Value("${inventory.lock-wait-millis:3000}")
+    private long lockWaitMillis;
+
+    // 分段库存的段数，热点商品的库存拆分到多个key上，分散到不同的slot
+    @Value("${inventory.segments:8}")
+    private int segmentCount;
+
+    // 段被标记为空后多久再去redis确认，其他实例重新初始化库存后最多延迟这么久才能卖
+    @Value("${inventory.segment-recheck-millis:1000}")
+    private long segmentRecheckMillis;
+
+    // 每一段被标记为空的截止时间，只是本地的提示，扣减仍以lua脚本的结果为准
+    private AtomicLongArray segmentEmptyUntil;
+
+    @PostConstruct
+    public void initSegments() {
+        segmentEmptyUntil = new AtomicLongArray(segmentCount);
+    }
+
+    // 整个集群同时扣减库存的最大请求数
+    @Value("${inventory.max-concurrency:4}")
+    private int maxConcurrency;
+
+    /**
+     * 不加锁，用一个lua脚本原子地完成检查和扣减，只需要一次网络往返
+     */
+    public String getInventoryByLua() {
+        String retResult = "";
+        Long inventoryNum = redisTemplate.execute(DEDUCT_INVENTORY_SCRIPT, Collections.singletonList("inventory001"), "1");
+        if (inventoryNum != null && inventoryNum >= 0) {
+            retResult = port + " " + "库存减少成功，剩余库存：" + inventoryNum;
+            System.out.println(port + " " + "库存扣减成功,剩余库存：" + inventoryNum);
+        } else {
+            retResult = "库存不足";
+            System.out.println(port + " " + "库存不足");
+        }
+        return retResult;
+    }
+
+    /**
+     * 查询剩余库存，使用读锁，多个查询可以同时进行，只和扣减互斥
+     */
+    public String queryInventory() {
+        Lock readLock = distributedLockFactory.getReadWriteLock("inventory", "inventory001").readLock();
+        if (!tryLockQuietly(readLock)) {
+            return port + " " + "系统繁忙，请稍后再试";
+        }
+        try {
+            String inventory = redisTemplate.opsForValue().get("inventory001");
+            return port + " " + "剩余库存：" + (inventory == null ? 0 : Integer.parseInt(inventory));
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * 从近端缓存查询库存，不加锁，热点读不经过网络，结果最多滞后near-cache.inventory.ttl-millis
+     */
+    public String queryInventoryCached() {
+        String inventory = inventoryNearCache.get("inventory001", key -> redisTemplate.opsForValue().get(key));
+        return port + " " + "剩余库存：" + (inventory == null ? 0 : Integer.parseInt(inventory));
+    }
+
+    /**
+     * 使用读写锁中的写锁扣减库存，和queryInventory配合使用
+     */
+    public String getInventoryByWriteLock() {
+        String retResult = "";
+        Lock writeLock = distributedLockFactory.getReadWriteLock("inventory", "inventory001").writeLock();
+        if (!tryLockQuietly(writeLock)) {
+            return port + " " + "系统繁忙，请稍后再试";
+        }
+        try {
+            String inventory = redisTemplate.opsForValue().get("inventory001");
+            Integer inventoryNum = inventory == null? 0 : Integer.parseInt(inventory);
+            if(inventoryNum > 0){
+                redisTemplate.opsForValue().set("inventory001", String.valueOf(--inventoryNum));
+                retResult = port + " " + "库存减少成功，剩余库存：" + inventoryNum;
+                System.out.println(port + " " + "库存扣减成功,剩余库存：" + inventoryNum);
+            }else {
+                retResult = "库存不足";
+                System.out.println(port + " " + "库存不足");
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return retResult;
+    }
+
+    private boolean tryLockQuietly(Lock lock) {
+        try {
+            return lock.tryLock(lockWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 从本地预占的库存中扣减，大部分请求不需要访问redis
+     */
+    public String getInventoryByLease() {
+        String retResult = "";
+        long inventoryNum = localInventoryLease.deduct();
+        if (inventoryNum >= 0) {
+            retResult = port + " " + "库存减少成功，本地剩余预占库存：" + inventoryNum;
+            System.out.println(port + " " + "库存扣减成功,本地剩余预占库存：" + inventoryNum);
+        } else {
+            retResult = "库存不足";
+            System.out.println(port + " " + "库存不足");
+        }
+        return retResult;
+    }
+
+    /**
+     * 初始化分段库存，总库存尽量平均地拆分到每一段上
+     */
+    public String initSegmentInventory(int total) {
+        if (total < 0) {
+            return port + " " + "总库存不能为负数";
+        }
+        int base = total / segmentCount;
+        int rest = total % segmentCount;
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            for (int i = 0; i < segmentCount; i++) {
+                stringRedisConnection.set(segmentKey(i), String.valueOf(i < rest ? base + 1 : base));
+            }
+            return null;
+        });
+        for (int i = 0; i < segmentCount; i++) {
+            segmentEmptyUntil.set(i, 0);
+        }
+        return port + " " + "分段库存初始化成功，总库存：" + total + "，段数：" + segmentCount;
+    }
+
+    /**
+     * 分段库存扣减，类似LongAdder，随机选择一段扣减，该段库存不足时依次尝试其他段
+     * 每一段都用lua脚本原子扣减，不会超卖
+     * 扣减失败的段在本地记为空，一段时间内不再访问，全部卖完后的请求不需要访问redis
+     */
+    public String getInventoryBySegment() {
+        String retResult = "";
+        long now = System.currentTimeMillis();
+        int start = ThreadLocalRandom.current().nextInt(segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            int segment = (start + i) % segmentCount;
+            if (segmentEmptyUntil.get(segment) > now) {
+                continue;
+            }
+            Long inventoryNum = redisTemplate.execute(DEDUCT_INVENTORY_SCRIPT, Collections.singletonList(segmentKey(segment)), "1");
+            if (inventoryNum != null && inventoryNum >= 0) {
+                retResult = port + " " + "库存减少成功，第" + segment + "段剩余库存：" + inventoryNum;
+                System.out.println(port + " " + "库存扣减成功,第" + segment + "段剩余库存：" + inventoryNum);
+                return retResult;
+            }
+            segmentEmptyUntil.set(segment, now + segmentRecheckMillis);
+        }
+        // 所有段都没有库存了
+        retResult = "库存不足";
+        System.out.println(port + " " + "库存不足");
+        return retResult;
+    }
+
+    /**
+     * 用分布式信号量限制整个集群同时扣减库存的请求数，不像互斥锁那样完全串行
+     * 扣减本身仍然由lua脚本保证原子性，信号量只负责限流
+     */
+    public String getInventoryBySemaphore() {
+        String retResult = "";
+        DistributedSemaphore semaphore = distributedLockFactory.getSemaphore("inventory", "inventory001", maxConcurrency);
+        String permitId;
+        try {
+            permitId = semaphore.tryAcquire(lockWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            permitId = null;
+        }
+        if (permitId == null) {
+            return port + " " + "系统繁忙，请稍后再试";
+        }
+        try {
+            Long inventoryNum = redisTemplate.execute(DEDUCT_INVENTORY_SCRIPT, Collections.singletonList("inventory001"), "1");
+            if (inventoryNum != null && inventoryNum >= 0) {
+                retResult = port + " " + "库存减少成功，剩余库存：" + inventoryNum;
+                System.out.println(port + " " + "库存扣减成功,剩余库存：" + inventoryNum);
+            } else {
+                retResult = "库存不足";
+                System.out.println(port + " " + "库存不足");
+            }
+        } finally {
+            semaphore.release(permitId);
+        }
+        return retResult;
+    }
+
+    /**
+     * 下单时同时扣减多个商品的库存，用批量锁一次锁住所有商品，任何一个商品库存不足都不扣减
+     */
+    public String checkout(List<String> skus) {
+        if (skus == null || skus.isEmpty() || skus.stream().anyMatch(sku -> sku == null || sku.isBlank())) {
+            return port + " " + "商品不能为空";
+        }
+        Lock multiLock = distributedLockFactory.getMultiLock("inventory", skus);
+        if (!tryLockQuietly(multiLock)) {
+            return port + " " + "系统繁忙，请稍后再试";
+        }
+        try {
+            // 同一个商品出现多次时合并为购买数量，按数量检查和扣减，否则每次只检查库存大于0会超卖
+            Map<String, Integer> quantities = new LinkedHashMap<>();
+            for (String sku : skus) {
+                quantities.merge(sku, 1, Integer::sum);
+            }
+            List<String> inventoryKeys = new ArrayList<>(quantities.size());
+            for (String sku : quantities.keySet()) {
+                inventoryKeys.add(skuInventoryKey(sku));
+            }
+            List<String> inventories = redisTemplate.opsForValue().multiGet(inventoryKeys);
+            int i = 0;
+            for (Map.Entry<String, Integer> quantity : quantities.entrySet()) {
+                String inventory = inventories == null ? null : inventories.get(i++);
+                if (inventory == null || Integer.parseInt(inventory) < quantity.getValue()) {
+                    System.out.println(port + " " + quantity.getKey() + "库存不足");
+                    return quantity.getKey() + "库存不足";
+                }
+            }
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+                for (Map.Entry<String, Integer> quantity : quantities.entrySet()) {
+                    stringRedisConnection.decrBy(skuInventoryKey(quantity.getKey()), quantity.getValue());
+                }
+                return null;
+            });
+            System.out.println(port + " " + "库存扣减成功,商品：" + skus);
+            return port + " " + "库存减少成功，商品：" + skus;
+        } finally {
+            multiLock.unlock();
+        }
+    }
+
+    private static String skuInventoryKey(String sku) {
+        return "inventory:" + sku;
+    }
+
+    private static String segmentKey(int segment) {
+        return "inventory001:segment:" + segment;
+    }
 
     /**
      * 使用redisson实现分布式锁
      */
     public String getInventoryByRedisson() {
         String retResult = "";
-        RLock redissonLock = redisson.getLock("redisLock");
+        RLock redissonLock = redisson.getLock(distributedLockFactory.lockName("inventory", "inventory001"));
         redissonLock.lock();
         try {
             String inventory = redisTemplate.opsForValue().get("inventory001");
@@ -59,8 +337,16 @@ public class InventoryService {
      */
     public String getInventory() {
         String retResult = "";
-        Lock redisDistributedLock = distributedLockFactory.getDistributedLock("redis");
-        redisDistributedLock.lock();
+        Lock redisDistributedLock = distributedLockFactory.getCoalescedLock("inventory", "inventory001");
+        try {
+            if (!redisDistributedLock.tryLock(lockWaitMillis, TimeUnit.MILLISECONDS)) {
+                System.out.println(port + " " + "获取锁超时，系统繁忙");
+                return port + " " + "系统繁忙，请稍后再试";
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return port + " " + "系统繁忙，请稍后再试";
+        }
         try {
             String inventory = redisTemplate.opsForValue().get("inventory001");
             Integer inventoryNum = inventory == null? 0 : Integer.parseInt(inventory);
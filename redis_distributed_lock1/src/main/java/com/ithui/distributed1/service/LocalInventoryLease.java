@@ -0,0 +1,152 @@
+package com.ithui.distributed1.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 本地预占库存，每个服务实例一次从redis中原子地预占一批库存，之后在本地扣减
+ * 预占的库存已经从redis中扣除，所以不会超卖；空闲超时或服务关闭时把没用完的库存还回去
+ */
+@Component
+public class LocalInventoryLease {
+
+    /**
+     * 预占库存：KEYS[1]库存的key，ARGV[1]最大批次，ARGV[2]每次最多预占剩余库存的1/ARGV[2]
+     * 库存越少批次越小，最后几件库存不会全部被某一个实例占住，返回实际预占的数量
+     */
+    private static final DefaultRedisScript<Long> RESERVE_SCRIPT = new DefaultRedisScript<>(
+            "local stock = tonumber(redis.call('get', KEYS[1]) or '0') " +
+            "if stock <= 0 then " +
+                    "return 0 " +
+            "end " +
+            "local take = math.min(tonumber(ARGV[1]), math.max(1, math.floor(stock / tonumber(ARGV[2])))) " +
+            "redis.call('decrby', KEYS[1], take) " +
+            "return take", Long.class);
+
+    private static final String INVENTORY_KEY = "inventory001";
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Value("${inventory.lease.batch-size:50}")
+    private long batchSize;
+
+    @Value("${inventory.lease.divisor:10}")
+    private long divisor;
+
+    // 超过这个时间没有扣减就把本地库存还回redis
+    @Value("${inventory.lease.idle-millis:30000}")
+    private long idleMillis;
+
+    // redis中的库存卖完后，这段时间内直接返回库存不足，不再排队去redis预占
+    @Value("${inventory.lease.sold-out-recheck-millis:1000}")
+    private long soldOutRecheckMillis;
+
+    private final AtomicLong localStock = new AtomicLong();
+
+    // 在这个时间之前认为redis中的库存已经卖完
+    private volatile long soldOutUntil;
+
+    // 只让一个线程去redis预占或归还库存
+    private final ReentrantLock refillLock = new ReentrantLock();
+
+    private volatile long lastDeductTime = System.currentTimeMillis();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "inventory-lease-idle-check");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::returnIfIdle, idleMillis, idleMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+        returnLocalStock();
+    }
+
+    /**
+     * 扣减一件库存
+     * @return 扣减后本地剩余的预占库存，-1表示库存不足
+     */
+    public long deduct() {
+        while (true) {
+            long stock = localStock.get();
+            if (stock > 0) {
+                if (localStock.compareAndSet(stock, stock - 1)) {
+                    lastDeductTime = System.currentTimeMillis();
+                    return stock - 1;
+                }
+                continue;
+            }
+            if (soldOutUntil > System.currentTimeMillis()) {
+                return -1;
+            }
+            refillLock.lock();
+            try {
+                // 其他线程可能已经预占过了，或者已经发现卖完了
+                if (localStock.get() > 0) {
+                    continue;
+                }
+                if (soldOutUntil > System.currentTimeMillis()) {
+                    return -1;
+                }
+                Long reserved = redisTemplate.execute(RESERVE_SCRIPT, Collections.singletonList(INVENTORY_KEY),
+                        String.valueOf(batchSize), String.valueOf(divisor));
+                if (reserved == null || reserved <= 0) {
+                    soldOutUntil = System.currentTimeMillis() + soldOutRecheckMillis;
+                    return -1;
+                }
+                soldOutUntil = 0;
+                localStock.addAndGet(reserved);
+            } finally {
+                refillLock.unlock();
+            }
+        }
+    }
+
+    private void returnIfIdle() {
+        try {
+            if (System.currentTimeMillis() - lastDeductTime >= idleMillis) {
+                returnLocalStock();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void returnLocalStock() {
+        refillLock.lock();
+        try {
+            long stock = localStock.getAndSet(0);
+            if (stock > 0) {
+                try {
+                    redisTemplate.opsForValue().increment(INVENTORY_KEY, stock);
+                    soldOutUntil = 0;
+                } catch (RuntimeException e) {
+                    // 归还失败时放回本地，下次再归还，避免库存丢失
+                    localStock.addAndGet(stock);
+                    throw e;
+                }
+            }
+        } finally {
+            refillLock.unlock();
+        }
+    }
+}
@@ -17,4 +17,9 @@ public class InventoryController {
     public String getInventory() {
         return inventoryService.getInventory();
     }
+
+    @GetMapping("/inventoryByLua")
+    public String getInventoryByLua() {
+        return inventoryService.getInventoryByLua();
+    }
 }
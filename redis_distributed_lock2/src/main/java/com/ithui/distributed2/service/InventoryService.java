@@ -3,15 +3,29 @@ package com.ithui.distributed2.service;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
 
+import java.util.Collections;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 @Service
 public class InventoryService {
 
+    /**
+     * 检查库存并扣减，KEYS[1]库存的key，ARGV[1]扣减数量
+     * 库存足够时返回扣减后的剩余库存，否则返回-1
+     */
+    private static final DefaultRedisScript<Long> DEDUCT_INVENTORY_SCRIPT = new DefaultRedisScript<>(
+            "local stock = tonumber(redis.call('get', KEYS[1]) or '0') " +
+            "if stock >= tonumber(ARGV[1]) then " +
+                    "return redis.call('decrby', KEYS[1], ARGV[1]) " +
+            "else " +
+                    "return -1 " +
+            "end", Long.class);
+
     @Value( "${server.port}" )
     private String port;
 
@@ -20,6 +34,22 @@ public class InventoryService {
 
     private Lock lock = new ReentrantLock();
 
+    /**
+     * 不加锁，用一个lua脚本原子地完成检查和扣减，只需要一次网络往返
+     */
+    public String getInventoryByLua() {
+        String retResult = "";
+        Long inventoryNum = redisTemplate.execute(DEDUCT_INVENTORY_SCRIPT, Collections.singletonList("inventory001"), "1");
+        if (inventoryNum != null && inventoryNum >= 0) {
+            retResult = port + " " + "库存减少成功，剩余库存：" + inventoryNum;
+            System.out.println(port + " " + "库存扣减成功,剩余库存：" + inventoryNum);
+        } else {
+            retResult = "库存不足";
+            System.out.println(port + " " + "库存不足");
+        }
+        return retResult;
+    }
+
     public String getInventory() {
         String retResult = "";
         // 单机版的锁
@@ -1,6 +1,10 @@
 package com.ithui.redlock.config;
 
 import io.micrometer.common.util.StringUtils;
+import jakarta.annotation.PreDestroy;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
 import org.redisson.config.Config;
@@ -10,6 +14,12 @@ import org.springframework.boot.context.properties.EnableConfigurationProperties
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 @Configuration
 @EnableConfigurationProperties(RedisProperties.class)
 public class CacheConfiguration {
@@ -17,43 +27,64 @@ public class CacheConfiguration {
     @Autowired
     private RedisProperties redisProperties;
 
+    // 关闭时使用，不能在销毁阶段再调用@Bean方法
+    private final List<RedissonClient> clients = new ArrayList<>();
+    private EventLoopGroup eventLoopGroup;
+    private ExecutorService executor;
 
-    @Bean
-    RedissonClient redissonClient1() {
-        Config config = new Config();
-        String node = redisProperties.getSingle().getAddress1();
-        node = node.startsWith("redis://") ? node : "redis://" + node;
-        SingleServerConfig serverConfig = config.useSingleServer()
-                .setAddress(node)
-                .setTimeout(redisProperties.getPool().getConnTimeout())
-                .setConnectionPoolSize(redisProperties.getPool().getSize())
-                .setConnectionMinimumIdleSize(redisProperties.getPool().getMinIdle());
-        if (StringUtils.isNotBlank(redisProperties.getPassword())) {
-            serverConfig.setPassword(redisProperties.getPassword());
+    /**
+     * 所有节点的客户端共用一个netty事件循环组，节点再多也不会额外创建IO线程
+     */
+    @Bean(destroyMethod = "")
+    EventLoopGroup redissonEventLoopGroup() {
+        eventLoopGroup = new NioEventLoopGroup(0, new DefaultThreadFactory("redisson-netty"));
+        return eventLoopGroup;
+    }
+
+    /**
+     * 所有节点的客户端共用一个线程池执行回调和监听器
+     */
+    @Bean(destroyMethod = "")
+    ExecutorService redissonExecutor() {
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2,
+                new DefaultThreadFactory("redisson-executor"));
+        return executor;
+    }
+
+    /**
+     * 按spring.redis.single.addresses为每个独立的redis节点创建一个客户端，红锁在这些节点上取多数
+     * redisson关闭时不会关闭外部传入的事件循环组和线程池，统一在shutdown()中按顺序关闭
+     */
+    @Bean(destroyMethod = "")
+    List<RedissonClient> redissonClients(EventLoopGroup redissonEventLoopGroup, ExecutorService redissonExecutor) {
+        List<String> addresses = redisProperties.getSingle().getAddresses();
+        if (addresses == null || addresses.isEmpty()) {
+            throw new IllegalStateException("spring.redis.single.addresses cannot be empty");
         }
-        return Redisson.create(config);
+        for (String address : addresses) {
+            clients.add(redissonClient(address, redissonEventLoopGroup, redissonExecutor));
+        }
+        return Collections.unmodifiableList(clients);
     }
 
-    @Bean
-    RedissonClient redissonClient2() {
-        Config config = new Config();
-        String node = redisProperties.getSingle().getAddress2();
-        node = node.startsWith("redis://") ? node : "redis://" + node;
-        SingleServerConfig serverConfig = config.useSingleServer()
-                .setAddress(node)
-                .setTimeout(redisProperties.getPool().getConnTimeout())
-                .setConnectionPoolSize(redisProperties.getPool().getSize())
-                .setConnectionMinimumIdleSize(redisProperties.getPool().getMinIdle());
-        if (StringUtils.isNotBlank(redisProperties.getPassword())) {
-            serverConfig.setPassword(redisProperties.getPassword());
+    /**
+     * 先关闭所有客户端，再关闭它们共用的事件循环组和线程池
+     */
+    @PreDestroy
+    public void shutdown() {
+        clients.forEach(RedissonClient::shutdown);
+        if (eventLoopGroup != null) {
+            eventLoopGroup.shutdownGracefully();
+        }
+        if (executor != null) {
+            executor.shutdown();
         }
-        return Redisson.create(config);
     }
 
-    @Bean
-    RedissonClient redissonClient3() {
+    private RedissonClient redissonClient(String node, EventLoopGroup eventLoopGroup, ExecutorService executor) {
         Config config = new Config();
-        String node = redisProperties.getSingle().getAddress3();
+        config.setEventLoopGroup(eventLoopGroup);
+        config.setExecutor(executor);
         node = node.startsWith("redis://") ? node : "redis://" + node;
         SingleServerConfig serverConfig = config.useSingleServer()
                 .setAddress(node)
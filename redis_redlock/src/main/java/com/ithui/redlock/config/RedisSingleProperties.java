@@ -2,9 +2,12 @@ package com.ithui.redlock.config;
 
 import lombok.Data;
 
+import java.util.List;
+
 @Data
 public class RedisSingleProperties {
-    private  String address1;
-    private  String address2;
-    private  String address3;
+    /**
+     * 独立的redis节点地址，红锁在这些节点上取多数，节点数建议为奇数
+     */
+    private  List<String> addresses;
 }
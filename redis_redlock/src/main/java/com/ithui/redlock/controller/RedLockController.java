@@ -1,14 +1,18 @@
 package com.ithui.redlock.controller;
 
 import cn.hutool.core.util.IdUtil;
+import com.ithui.redlock.lock.QuorumRedLock;
+import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.RedissonMultiLock;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
-import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 @RestController
@@ -18,12 +22,17 @@ public class RedLockController {
     // 红锁的缓存key
     public static final String CACHE_KEY_REDLOCK = "ATGUIGU_REDLOCK";
 
-    @Autowired
-    private RedissonClient redissonClient1;
-    @Autowired
-    private RedissonClient redissonClient2;
-    @Autowired
-    private RedissonClient redissonClient3;
+    // 每个独立redis节点一个客户端，按名称注入整个列表
+    @Resource(name = "redissonClients")
+    private List<RedissonClient> redissonClients;
+
+    // 单个节点加锁的超时时间
+    @Value("${redlock.node-timeout-millis:50}")
+    private long nodeTimeoutMillis;
+
+    // 加锁失败后随机退避的最长时间
+    @Value("${redlock.retry-delay-millis:200}")
+    private long retryDelayMillis;
 
     @GetMapping("/redlock")
     public String getRedLock(){
@@ -32,11 +41,7 @@ public class RedLockController {
         String uuidValue = uuid+":"+Thread.currentThread().getId();
 
         // 尝试获取红锁
-        RLock lock1 = redissonClient1.getLock(CACHE_KEY_REDLOCK);
-        RLock lock2 = redissonClient2.getLock(CACHE_KEY_REDLOCK);
-        RLock lock3 = redissonClient3.getLock(CACHE_KEY_REDLOCK);
-
-        RedissonMultiLock multiLock = new RedissonMultiLock(lock1, lock2, lock3);
+        RedissonMultiLock multiLock = new RedissonMultiLock(locks().toArray(new RLock[0]));
         multiLock.lock();
         try {
             System.out.println(uuidValue+"\t"+"---come in biz multiLock");
@@ -51,4 +56,40 @@ public class RedLockController {
         }
         return "multiLock task is over  "+uuidValue;
     }
+
+    /**
+     * 按RedLock算法并行加锁，多数节点成功即可，不用等待最慢的节点
+     */
+    @GetMapping("/redlock/quorum")
+    public String getQuorumRedLock() throws InterruptedException {
+
+        String uuid =  IdUtil.simpleUUID();
+        String uuidValue = uuid+":"+Thread.currentThread().getId();
+
+        QuorumRedLock redLock = new QuorumRedLock(locks(), nodeTimeoutMillis, retryDelayMillis);
+        if (!redLock.tryLock(3, 30, TimeUnit.SECONDS)) {
+            return "quorum redlock busy  "+uuidValue;
+        }
+        try {
+            System.out.println(uuidValue+"\t"+"---come in biz quorum redlock, validity "+redLock.remainingValidity()+"ms");
+            try { TimeUnit.SECONDS.sleep(10); } catch (InterruptedException e) { e.printStackTrace(); }
+            // 超过有效时间后锁可能已经被其他客户端拿到，业务结果不可信
+            if (redLock.remainingValidity() <= 0) {
+                log.warn("quorum redlock expired before task finished key:{}", CACHE_KEY_REDLOCK);
+            }
+            System.out.println(uuidValue+"\t"+"---task is over quorum redlock");
+        } finally {
+            redLock.unlock();
+            log.info("释放分布式锁成功key:{}", CACHE_KEY_REDLOCK);
+        }
+        return "quorum redlock task is over  "+uuidValue;
+    }
+
+    private List<RLock> locks() {
+        List<RLock> locks = new ArrayList<>(redissonClients.size());
+        for (RedissonClient redissonClient : redissonClients) {
+            locks.add(redissonClient.getLock(CACHE_KEY_REDLOCK));
+        }
+        return locks;
+    }
 }
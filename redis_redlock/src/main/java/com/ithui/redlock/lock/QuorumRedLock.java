@@ -0,0 +1,154 @@
+package com.ithui.redlock.lock;
+
+import org.redisson.api.RLock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按RedLock算法实现的红锁：同时向N个独立的redis节点加锁，多数节点成功即视为加锁成功
+ * 加锁耗时取决于第N/2+1快的节点，一个慢节点不会拖慢所有请求
+ * 锁的有效时间 = 租约时间 - 加锁耗时 - 时钟漂移，业务必须在有效时间内完成，超过后锁可能已经失效
+ */
+public class QuorumRedLock {
+
+    // 时钟漂移：租约时间的1%再加2毫秒，参考RedLock算法
+    private static final double CLOCK_DRIFT_FACTOR = 0.01;
+    private static final long CLOCK_DRIFT_MILLIS = 2;
+
+    private final List<RLock> locks;
+    private final int quorum;
+    // 单个节点加锁的超时时间，要远小于租约时间，节点宕机时不会一直等
+    private final long nodeTimeoutMillis;
+    // 加锁失败后随机退避的最长时间，避免多个客户端同时重试又互相分票
+    private final long retryDelayMillis;
+
+    private long threadId;
+    private long validUntil;
+    private List<CompletableFuture<Boolean>> attempts;
+
+    public QuorumRedLock(List<RLock> locks, long nodeTimeoutMillis, long retryDelayMillis) {
+        if (locks.isEmpty()) {
+            throw new IllegalArgumentException("locks cannot be empty");
+        }
+        this.locks = locks;
+        this.quorum = locks.size() / 2 + 1;
+        this.nodeTimeoutMillis = nodeTimeoutMillis;
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    /**
+     * 在waitTime内不断尝试加锁，每一轮都并行地向所有节点加锁
+     * @param leaseTime 每个节点上锁的过期时间，不会自动续期
+     * @return 多数节点加锁成功且有效时间大于0时返回true
+     */
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        long leaseMillis = unit.toMillis(leaseTime);
+        long deadline = System.nanoTime() + unit.toNanos(waitTime);
+        long driftMillis = (long) (leaseMillis * CLOCK_DRIFT_FACTOR) + CLOCK_DRIFT_MILLIS;
+        long currentThreadId = Thread.currentThread().getId();
+        while (true) {
+            long start = System.nanoTime();
+            List<CompletableFuture<Boolean>> attempts = new ArrayList<>(locks.size());
+            for (RLock lock : locks) {
+                attempts.add(lock.tryLockAsync(0, leaseMillis, TimeUnit.MILLISECONDS, currentThreadId).toCompletableFuture());
+            }
+            boolean quorumReached;
+            try {
+                quorumReached = awaitQuorum(attempts);
+            } catch (InterruptedException e) {
+                // 被中断时这一轮可能已经在部分节点上加锁成功，释放后再抛出
+                releaseAfter(attempts, currentThreadId);
+                throw e;
+            }
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            long validityMillis = leaseMillis - elapsedMillis - driftMillis;
+            if (quorumReached && validityMillis > 0) {
+                this.threadId = currentThreadId;
+                this.attempts = attempts;
+                this.validUntil = System.currentTimeMillis() + validityMillis;
+                return true;
+            }
+            // 没有拿到多数节点或者已经没有有效时间，把已经加上的锁都释放掉
+            releaseAfter(attempts, currentThreadId);
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            long backoff = TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextLong(retryDelayMillis + 1));
+            TimeUnit.NANOSECONDS.sleep(Math.min(backoff, remaining));
+        }
+    }
+
+    /**
+     * 剩余的有效时间（毫秒），小于等于0表示锁可能已经失效
+     */
+    public long remainingValidity() {
+        return validUntil - System.currentTimeMillis();
+    }
+
+    /**
+     * 并行释放所有节点上的锁，包括加锁时没有及时响应的节点
+     */
+    public void unlock() {
+        if (attempts == null) {
+            throw new IllegalMonitorStateException("redlock is not locked");
+        }
+        List<CompletableFuture<Void>> releases = releaseAfter(attempts, threadId);
+        attempts = null;
+        CompletableFuture.allOf(releases.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    /**
+     * 等待到多数节点成功、成功已经不可能或者单节点超时，返回是否拿到了多数节点
+     */
+    private boolean awaitQuorum(List<CompletableFuture<Boolean>> attempts) throws InterruptedException {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        AtomicInteger acquired = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        int maxFailures = attempts.size() - quorum;
+        for (CompletableFuture<Boolean> attempt : attempts) {
+            attempt.whenComplete((locked, e) -> {
+                if (e == null && Boolean.TRUE.equals(locked)) {
+                    if (acquired.incrementAndGet() >= quorum) {
+                        result.complete(true);
+                    }
+                } else if (failed.incrementAndGet() > maxFailures) {
+                    result.complete(false);
+                }
+            });
+        }
+        try {
+            return result.get(nodeTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            // result只会以true/false完成
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 每个节点的加锁请求完成后再释放，避免释放请求先于仍在途中的加锁请求到达节点
+     */
+    private List<CompletableFuture<Void>> releaseAfter(List<CompletableFuture<Boolean>> attempts, long threadId) {
+        List<CompletableFuture<Void>> releases = new ArrayList<>(attempts.size());
+        for (int i = 0; i < attempts.size(); i++) {
+            RLock lock = locks.get(i);
+            releases.add(attempts.get(i).handle((locked, e) -> e == null && Boolean.TRUE.equals(locked))
+                    .thenCompose(locked -> locked ? unlockQuietly(lock, threadId) : CompletableFuture.completedFuture(null)));
+        }
+        return releases;
+    }
+
+    private static CompletableFuture<Void> unlockQuietly(RLock lock, long threadId) {
+        // 没有在该节点上加锁成功时会抛出IllegalMonitorStateException，忽略即可
+        return lock.unlockAsync(threadId).toCompletableFuture().exceptionally(e -> null);
+    }
+}